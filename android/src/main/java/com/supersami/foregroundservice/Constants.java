@@ -2,13 +2,38 @@ package com.supersami.foregroundservice;
 
 class Constants {
     static final String NOTIFICATION_CONFIG = "com.supersami.foregroundservice.notif_config";
+    static final String NOTIFICATION_CONFIGS = "com.supersami.foregroundservice.notif_configs";
     static final String TASK_CONFIG = "com.supersami.foregroundservice.task_config";
+    static final String TASK_COUNT = "com.supersami.foregroundservice.task_count";
+    static final String SESSION_ID = "com.supersami.foregroundservice.session_id";
+    static final String START_REQUESTED_AT = "com.supersami.foregroundservice.start_requested_at";
+    static final String TASK_SCHEDULES = "com.supersami.foregroundservice.task_schedules";
+    // set on intents sent with startForegroundService, the service has to call startForeground
+    static final String FOREGROUND_REQUIRED = "com.supersami.foregroundservice.foreground_required";
 
     static final String ACTION_FOREGROUND_SERVICE_START = "com.supersami.foregroundservice.service_start";
     static final String ACTION_FOREGROUND_SERVICE_STOP = "com.supersami.foregroundservice.service_stop";
     static final String ACTION_FOREGROUND_SERVICE_STOP_ALL = "com.supersami.foregroundservice.service_all";
     static final String ACTION_FOREGROUND_RUN_TASK = "com.supersami.foregroundservice.service_run_task";
     static final String ACTION_UPDATE_NOTIFICATION = "com.supersami.foregroundservice.service_update_notification";
+    static final String ACTION_UPDATE_NOTIFICATIONS = "com.supersami.foregroundservice.service_update_notifications";
+    static final String ACTION_TASK_ACTIVITY = "com.supersami.foregroundservice.service_task_activity";
+
+    // Messenger requests from the UI process when the service runs in its own process
+    static final int MSG_GET_STATE = 1;
+    static final int MSG_APPEND_SAMPLES = 2;
+    static final int MSG_DRAIN_SAMPLES = 3;
+    static final int MSG_COMMIT_SAMPLES = 4;
+    static final int MSG_GET_SAMPLE_STATS = 5;
+    static final int MSG_SET_EVENT_DELIVERY = 6;
+    static final int MSG_EVENTS = 7;
+    static final int MSG_NOTIFICATION_CANCELLED = 8;
+    static final int MSG_REGISTER_CLIENT = 9;
+    static final int MSG_SET_TASKS = 10;
+    static final int MSG_GET_METRICS = 11;
+    // sent by the service to the UI process before it stops itself while idle
+    static final int MSG_IDLE_STOPPED = 12;
+    static final String MSG_EVENTS_KEY = "events";
 
     static final String ERROR_INVALID_CONFIG = "ERROR_INVALID_CONFIG";
     static final String ERROR_SERVICE_ERROR = "ERROR_SERVICE_ERROR";
@@ -0,0 +1,318 @@
+package com.supersami.foregroundservice;
+
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Messenger;
+import android.os.RemoteException;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.ReactContext;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+import com.facebook.react.modules.core.DeviceEventManagerModule;
+
+
+// Delivers native events to JS in batches: events go into a fixed size ring buffer and are
+// emitted as one "foregroundServiceEvents" array per interval, so high rate events cost one
+// bridge message per interval instead of one each. When the buffer is full the oldest event
+// is dropped and counted.
+// Nothing is emitted before JS subscribes, events queued meanwhile (e.g. the notification click
+// that launched the app) are delivered with the first flush.
+// When the service runs in its own process the batcher there has no JS to talk to, it sends
+// each batch to the UI process through the Messenger of ServiceClient instead.
+
+public class EventBatcher {
+
+    static final String EVENT_NAME = "foregroundServiceEvents";
+
+    static final String TYPE_NOTIFICATION_CLICK = "notificationClick";
+    static final String TYPE_TICK = "tick";
+    static final String TYPE_TASK_FINISHED = "taskFinished";
+    static final String TYPE_IDLE = "idle";
+    static final String TYPE_PROFILE = "profile";
+
+    private static final int CAPACITY = 256;
+    private static final long DEFAULT_INTERVAL = 250;
+
+    private static EventBatcher instance = null;
+
+    private final String[] types = new String[CAPACITY];
+    // Bundle, or WritableMap when queued by app code
+    private final Object[] payloads = new Object[CAPACITY];
+    private final long[] times = new long[CAPACITY];
+    private int head = 0;
+    private int size = 0;
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private boolean flushScheduled = false;
+    private long interval = DEFAULT_INTERVAL;
+
+    private ReactContext reactContext = null;
+    // UI process client batches are forwarded to, only set in the service process
+    private Messenger remote = null;
+    // set once JS listens, events are only buffered until then
+    private boolean ready = false;
+    // high rate event types JS listens to, others are not even queued
+    private volatile Set<String> wantedTypes = Collections.emptySet();
+
+    private long queued = 0;
+    private long delivered = 0;
+    private long dropped = 0;
+    private long flushes = 0;
+
+    private final Runnable flushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    public static synchronized EventBatcher getInstance() {
+        if (instance == null) {
+            instance = new EventBatcher();
+        }
+        return instance;
+    }
+
+    // Queues an event for JS. The payload is handed over and must not be used afterwards.
+    public void emit(String type, WritableMap payload) {
+        enqueue(type, payload, ServiceClock.currentTimeMillis());
+    }
+
+    void emit(String type, Bundle payload) {
+        enqueue(type, payload, ServiceClock.currentTimeMillis());
+    }
+
+    private void enqueue(String type, Object payload, long time) {
+        synchronized (this) {
+            int index = (head + size) % CAPACITY;
+            if (size == CAPACITY) {
+                // overwrite the oldest event
+                head = (head + 1) % CAPACITY;
+                dropped += 1;
+            } else {
+                size += 1;
+            }
+            types[index] = type;
+            payloads[index] = payload;
+            times[index] = time;
+            queued += 1;
+
+            if (!ready || flushScheduled) {
+                return;
+            }
+            flushScheduled = true;
+        }
+        handler.postDelayed(flushRunnable, interval);
+    }
+
+    // Cheap check for high rate events, so payloads are only built when JS listens to them
+    boolean wants(String type) {
+        return wantedTypes.contains(type);
+    }
+
+    synchronized void attach(ReactContext context) {
+        reactContext = context;
+    }
+
+    // Called by JS when it subscribes or changes its subscriptions
+    void configure(ReactContext context, Set<String> types, long flushInterval) {
+        synchronized (this) {
+            reactContext = context;
+        }
+        start(types, flushInterval);
+    }
+
+    // Called in the service process when the UI process subscribes
+    void configureRemote(Messenger client, Set<String> types, long flushInterval) {
+        synchronized (this) {
+            remote = client;
+        }
+        start(types, flushInterval);
+    }
+
+    private void start(Set<String> types, long flushInterval) {
+        synchronized (this) {
+            wantedTypes = Collections.unmodifiableSet(new HashSet<>(types));
+            interval = Math.max(16, flushInterval);
+            ready = true;
+            if (size == 0 || flushScheduled) {
+                return;
+            }
+            flushScheduled = true;
+        }
+        handler.post(flushRunnable);
+    }
+
+    synchronized void detach(ReactContext context) {
+        if (reactContext != context) {
+            return;
+        }
+        reactContext = null;
+        stop();
+    }
+
+    synchronized void detachRemote() {
+        remote = null;
+        stop();
+    }
+
+    private void stop() {
+        ready = false;
+        wantedTypes = Collections.emptySet();
+        handler.removeCallbacks(flushRunnable);
+        flushScheduled = false;
+    }
+
+    // A batch forwarded by the service process, emitted right away since it was already batched
+    void deliver(List<Bundle> events) {
+        ReactContext context;
+        synchronized (this) {
+            context = reactContext;
+            if (!ready || context == null || !context.hasActiveCatalystInstance()) {
+                for (Bundle event : events) {
+                    enqueue(event.getString("type"), event.getBundle("data"), (long)event.getDouble("time"));
+                }
+                return;
+            }
+            delivered += events.size();
+            flushes += 1;
+        }
+
+        WritableArray array = Arguments.createArray();
+        for (Bundle event : events) {
+            array.pushMap(Arguments.fromBundle(event));
+        }
+        send(context, array);
+    }
+
+    private void flush() {
+        ReactContext context;
+        Messenger client;
+        List<Bundle> bundles = null;
+        WritableArray events = null;
+
+        synchronized (this) {
+            flushScheduled = false;
+            context = reactContext;
+            client = remote;
+            boolean local = context != null && context.hasActiveCatalystInstance();
+            if (!ready || size == 0 || (!local && client == null)) {
+                return;
+            }
+
+            int count = size;
+            if (local) {
+                events = Arguments.createArray();
+            } else {
+                bundles = new ArrayList<>(count);
+            }
+
+            for (int i = 0; i < count; i++) {
+                int index = (head + i) % CAPACITY;
+                if (local) {
+                    events.pushMap(toMap(types[index], times[index], payloads[index]));
+                } else {
+                    bundles.add(toBundle(types[index], times[index], payloads[index]));
+                }
+
+                types[index] = null;
+                payloads[index] = null;
+            }
+            head = 0;
+            size = 0;
+            delivered += count;
+            flushes += 1;
+        }
+
+        if (events != null) {
+            send(context, events);
+            return;
+        }
+
+        Message message = Message.obtain(null, Constants.MSG_EVENTS);
+        Bundle data = new Bundle();
+        data.putParcelableArrayList(Constants.MSG_EVENTS_KEY, new ArrayList<>(bundles));
+        message.setData(data);
+        try {
+            client.send(message);
+        } catch (RemoteException e) {
+            // the UI process is gone, put the batch back and keep buffering until it
+            // subscribes again
+            requeue(bundles);
+            detachRemote();
+        }
+    }
+
+    // Puts events that could not be delivered back in front of the ones queued since. If they
+    // don't all fit the oldest are dropped, as when the buffer overflows.
+    private synchronized void requeue(List<Bundle> events) {
+        delivered -= events.size();
+        for (int i = events.size() - 1; i >= 0; i--) {
+            if (size == CAPACITY) {
+                dropped += i + 1;
+                break;
+            }
+            Bundle event = events.get(i);
+            head = (head - 1 + CAPACITY) % CAPACITY;
+            size += 1;
+            types[head] = event.getString("type");
+            payloads[head] = event.getBundle("data");
+            times[head] = (long)event.getDouble("time");
+        }
+    }
+
+    private static WritableMap toMap(String type, long time, Object payload) {
+        WritableMap event = Arguments.createMap();
+        event.putString("type", type);
+        event.putDouble("time", time);
+        if (payload instanceof Bundle) {
+            event.putMap("data", Arguments.fromBundle((Bundle) payload));
+        } else if (payload != null) {
+            event.putMap("data", (WritableMap) payload);
+        }
+        return event;
+    }
+
+    private static Bundle toBundle(String type, long time, Object payload) {
+        Bundle event = new Bundle();
+        event.putString("type", type);
+        event.putDouble("time", time);
+        if (payload instanceof Bundle) {
+            event.putBundle("data", (Bundle) payload);
+        } else if (payload != null) {
+            event.putBundle("data", Arguments.toBundle((WritableMap) payload));
+        }
+        return event;
+    }
+
+    private void send(ReactContext context, WritableArray events) {
+        try {
+            context
+                .getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class)
+                .emit(EVENT_NAME, events);
+        } catch (Exception e) {
+            Log.e("ForegroundService", "Failed to emit events: " + e.getMessage());
+        }
+    }
+
+    synchronized Bundle getStats() {
+        Bundle bundle = new Bundle();
+        bundle.putDouble("queued", queued);
+        bundle.putDouble("delivered", delivered);
+        bundle.putDouble("dropped", dropped);
+        bundle.putDouble("flushes", flushes);
+        bundle.putInt("pending", size);
+        bundle.putInt("capacity", CAPACITY);
+        return bundle;
+    }
+}
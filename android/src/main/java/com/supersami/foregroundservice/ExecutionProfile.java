@@ -0,0 +1,63 @@
+package com.supersami.foregroundservice;
+
+import android.os.Bundle;
+
+
+// How the service runs under a power state: how much loop intervals are stretched, whether
+// low priority JS tasks are paused and how often notifications may be updated.
+// The app can override any field of any profile through the profiles option of start(),
+// fields it leaves out keep the defaults below.
+
+class ExecutionProfile {
+
+    static final String NORMAL = "normal";
+    static final String CHARGING = "charging";
+    static final String POWER_SAVE = "powerSave";
+    static final String DEVICE_IDLE = "deviceIdle";
+    static final String THERMAL = "thermal";
+
+    final String name;
+    // multiplier applied to loop intervals, native and JS
+    final double loopScale;
+    final boolean pauseLowPriority;
+    // notification updates closer than this (ms) are coalesced, 0 to post every update
+    final long minNotificationInterval;
+
+    private ExecutionProfile(String name, double loopScale, boolean pauseLowPriority, long minNotificationInterval) {
+        this.name = name;
+        this.loopScale = loopScale;
+        this.pauseLowPriority = pauseLowPriority;
+        this.minNotificationInterval = minNotificationInterval;
+    }
+
+    static ExecutionProfile getDefault(String name) {
+        switch (name) {
+            case POWER_SAVE:
+                return new ExecutionProfile(name, 2, true, 2000);
+            case DEVICE_IDLE:
+                return new ExecutionProfile(name, 4, true, 10000);
+            case THERMAL:
+                return new ExecutionProfile(name, 4, true, 5000);
+            default:
+                return new ExecutionProfile(name, 1, false, 0);
+        }
+    }
+
+    // Default profile with the fields the app set in profiles[name]
+    static ExecutionProfile resolve(String name, Bundle profiles) {
+        ExecutionProfile base = getDefault(name);
+        Bundle overrides = profiles != null ? profiles.getBundle(name) : null;
+        if (overrides == null) {
+            return base;
+        }
+
+        return new ExecutionProfile(name,
+            Math.max(1, overrides.getDouble("loopScale", base.loopScale)),
+            overrides.getBoolean("pauseLowPriority", base.pauseLowPriority),
+            (long)overrides.getDouble("minNotificationInterval", base.minNotificationInterval));
+    }
+
+    long scale(long delay) {
+        return (long)(delay * loopScale);
+    }
+}
@@ -3,16 +3,55 @@ package com.supersami.foregroundservice;
 import android.app.Notification;
 import android.app.NotificationManager;
 import android.app.Service;
+import android.content.Context;
 import android.content.Intent;
+import android.content.ComponentName;
+import android.content.pm.PackageManager;
 import android.os.Bundle;
 import android.os.IBinder;
 import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Messenger;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.text.TextUtils;
 import android.util.Log;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
 import com.facebook.react.HeadlessJsTaskService;
 
+import static com.supersami.foregroundservice.Constants.FOREGROUND_REQUIRED;
 import static com.supersami.foregroundservice.Constants.NOTIFICATION_CONFIG;
+import static com.supersami.foregroundservice.Constants.NOTIFICATION_CONFIGS;
+import static com.supersami.foregroundservice.Constants.SESSION_ID;
+import static com.supersami.foregroundservice.Constants.START_REQUESTED_AT;
 import static com.supersami.foregroundservice.Constants.TASK_CONFIG;
+import static com.supersami.foregroundservice.Constants.TASK_COUNT;
+import static com.supersami.foregroundservice.Constants.TASK_SCHEDULES;
+import static com.supersami.foregroundservice.Constants.MSG_APPEND_SAMPLES;
+import static com.supersami.foregroundservice.Constants.MSG_COMMIT_SAMPLES;
+import static com.supersami.foregroundservice.Constants.MSG_DRAIN_SAMPLES;
+import static com.supersami.foregroundservice.Constants.MSG_GET_SAMPLE_STATS;
+import static com.supersami.foregroundservice.Constants.MSG_GET_METRICS;
+import static com.supersami.foregroundservice.Constants.MSG_GET_STATE;
+import static com.supersami.foregroundservice.Constants.MSG_IDLE_STOPPED;
+import static com.supersami.foregroundservice.Constants.MSG_NOTIFICATION_CANCELLED;
+import static com.supersami.foregroundservice.Constants.MSG_REGISTER_CLIENT;
+import static com.supersami.foregroundservice.Constants.MSG_SET_EVENT_DELIVERY;
+import static com.supersami.foregroundservice.Constants.MSG_SET_TASKS;
 
 
 // NOTE: headless task will still block the UI so don't do heavy work, but this is also good
@@ -23,7 +62,63 @@ public class ForegroundService extends Service {
 
     private static ForegroundService mInstance = null;
     private static Bundle lastNotificationConfig = null;
-    private int running = 0;
+    private static SampleSink sampleSink = null;
+    // default page size of a sample drain
+    static final int DRAIN_MAX_SEGMENTS = 4;
+    static final int DRAIN_MAX_RECORDS = 20000;
+    // set when the service stopped itself for being idle, the next task activity brings it back
+    private static boolean idleStopped = false;
+    // total starts over all sessions
+    private volatile int running = 0;
+    // posted only for an instant when there is no notification config to go foreground with
+    private static final int FALLBACK_NOTIFICATION_ID = 0x46475301;
+    // token of the delayed headless task posts, so idle can drop them without the other posts
+    private static final Object DELAYED_TASKS = new Object();
+
+    // sessions in start order, the foreground one owns the notification passed to startForeground
+    private final Map<String, ServiceSession> sessions = new LinkedHashMap<>();
+    private ServiceSession foregroundSession = null;
+    // read by the module from the JS thread
+    private volatile List<Bundle> sessionInfo = new ArrayList<>();
+
+    // idle policy, configured from the loop task config. A negative task count means JS
+    // never reported its tasks, in which case the service is never considered idle.
+    private int taskCount = -1;
+    private long lastActivity = 0;
+    private long idleTimeout = 0;
+    private boolean stopOnIdle = false;
+    private boolean idle = false;
+
+    // elapsed realtime the module asked for the start at, to report start to foreground latency
+    private long startRequestedAt = 0;
+    // full notifications are built here so startForeground is not held up by them
+    private Handler buildHandler = null;
+
+    // last config posted for each notification id by the batched update, unchanged ones are skipped
+    private final Map<Integer, Bundle> postedConfigs = new ConcurrentHashMap<>();
+    // id of the summary posted for each group
+    private final Map<String, Integer> groupSummaries = new HashMap<>();
+
+    // execution profile picked from the power state, the app's overrides come with the loop config
+    private PowerMonitor powerMonitor = null;
+    private ExecutionProfile profile = ExecutionProfile.getDefault(ExecutionProfile.NORMAL);
+    private Bundle profileOverrides = null;
+
+    // uptime each notification id was last updated at, and the updates held back because they
+    // came faster than the profile allows. Only the latest held update per id is kept.
+    private final Map<Integer, Long> lastUpdateAt = new HashMap<>();
+    private final Map<Integer, Bundle> heldUpdates = new LinkedHashMap<>();
+    private final Runnable releaseHeldUpdates = new Runnable() {
+        @Override
+        public void run() {
+            if(heldUpdates.isEmpty() || running <= 0){
+                return;
+            }
+            List<Bundle> held = new ArrayList<>(heldUpdates.values());
+            heldUpdates.clear();
+            postNotifications(throttleUpdates(held));
+        }
+    };
 
 
 
@@ -47,6 +142,79 @@ public class ForegroundService extends Service {
         return running;
     }
 
+    public List<Bundle> getSessionInfo(){
+        return sessionInfo;
+    }
+
+    // main thread only, used by the tests to reach a session loop
+    ServiceSession getSession(String id){
+        return sessions.get(id);
+    }
+
+    // a cancelled notification has to be posted again by the next batched update, and its group
+    // summary no longer lists it. Called from the module thread.
+    public void onNotificationCancelled(final int id){
+        final Bundle removed = postedConfigs.remove(id);
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                heldUpdates.remove(id);
+                updateGroupSummaries(removed, null);
+            }
+        });
+    }
+
+    public static boolean isIdleStopped(){
+        return idleStopped;
+    }
+
+    // The sink outlives the service instance so samples can be written while the service restarts
+    public static synchronized SampleSink getSampleSink(Context context){
+        if(sampleSink == null){
+            sampleSink = new SampleSink(context.getApplicationContext());
+        }
+        return sampleSink;
+    }
+
+    // One page of sealed segments as { segment, records } bundles, oldest first: at most
+    // maxSegments, and no further segment once maxRecords were read (segments are never split).
+    // The active segment is sealed when nothing older is left, once it holds MIN_SEAL_BYTES, or
+    // right away with includeActive.
+    static ArrayList<Bundle> drainSamples(SampleSink sink, int maxSegments, int maxRecords, boolean includeActive){
+        List<String> segments = sink.getSealedSegments();
+        if(includeActive || segments.isEmpty()){
+            if(sink.rotate(includeActive ? 1 : SampleSink.MIN_SEAL_BYTES)){
+                segments = sink.getSealedSegments();
+            }
+        }
+
+        ArrayList<Bundle> result = new ArrayList<>();
+        int records = 0;
+        for (String segment : segments) {
+            if (result.size() >= maxSegments || records >= maxRecords) {
+                break;
+            }
+            ArrayList<String> strings = new ArrayList<>(sink.readSegmentStrings(segment));
+            records += strings.size();
+
+            Bundle bundle = new Bundle();
+            bundle.putString("segment", segment);
+            bundle.putStringArrayList("records", strings);
+            result.add(bundle);
+        }
+        return result;
+    }
+
+    static Bundle getSampleStats(SampleSink sink){
+        Bundle bundle = new Bundle();
+        bundle.putDouble("records", sink.getTotalRecords());
+        bundle.putDouble("dropped", sink.getDroppedRecords());
+        bundle.putDouble("droppedSegments", sink.getDroppedSegments());
+        bundle.putDouble("flushes", sink.getFlushCount());
+        bundle.putDouble("pendingBytes", sink.getPendingBytes());
+        return bundle;
+    }
+
     private boolean ping(){
         return true;
     }
@@ -56,63 +224,769 @@ public class ForegroundService extends Service {
         //Log.e("ForegroundService", "destroy called");
         running = 0;
         mInstance = this;
+        lastActivity = ServiceClock.elapsedRealtime();
+
+        powerMonitor = new PowerMonitor(this, new PowerMonitor.Listener() {
+            @Override
+            public void onProfileChanged(String name) {
+                applyProfile(name);
+            }
+        });
+        powerMonitor.start();
+        profile = ExecutionProfile.resolve(powerMonitor.getProfile(), profileOverrides);
+        ServiceMetrics.getInstance().onProfileChange(profile.name);
+
+        // in its own process the service gets nothing from the prewarm of the UI process
+        if(ServiceClient.isRemote(this)){
+            NotificationHelper.prewarm(getApplicationContext());
+        }
     }
 
     @Override
     public void onDestroy() {
         //Log.e("ForegroundService", "destroy called");
-        this.handler.removeCallbacks(this.runnableCode);
+        this.handler.removeCallbacksAndMessages(null);
+        if(buildHandler != null){
+            buildHandler.getLooper().quitSafely();
+            buildHandler = null;
+        }
+        if(powerMonitor != null){
+            powerMonitor.stop();
+            powerMonitor = null;
+        }
+        ServiceMetrics.getInstance().onProfileChange(null);
         running = 0;
         mInstance = null;
+        // an idle stop keeps counting as idle time until the service comes back
+        if(!idleStopped){
+            ServiceMetrics.getInstance().onIdleExit();
+        }
+
+        synchronized (ForegroundService.class){
+            if(sampleSink != null){
+                sampleSink.flush();
+            }
+        }
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        ServiceMetrics.getInstance().onTrimMemory(level);
+
+        // nothing is needed while idle, otherwise only give caches up under real pressure.
+        // UI_HIDDEN and BACKGROUND come whenever the app leaves the screen, which is exactly
+        // when the service is working, so they keep the caches.
+        if(idle || level == TRIM_MEMORY_RUNNING_LOW || level == TRIM_MEMORY_RUNNING_CRITICAL
+            || level >= TRIM_MEMORY_MODERATE){
+            NotificationHelper.release();
+        }
     }
 
+    // Only used when the service runs in its own process, see ServiceClient
     @Override
     public IBinder onBind(Intent intent) {
-        return null;
+        return messenger.getBinder();
     }
 
+    private final Messenger messenger = new Messenger(new RequestHandler());
+    // UI processes to tell when the service stops itself, main thread only
+    private final Set<Messenger> clients = new HashSet<>();
+
+    private class RequestHandler extends Handler {
+
+        RequestHandler(){
+            super(Looper.getMainLooper());
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            Bundle data = msg.getData();
+            Bundle reply = null;
+
+            try {
+                switch (msg.what) {
+                    case MSG_GET_STATE:
+                        reply = getState();
+                        break;
+
+                    case MSG_GET_METRICS:
+                        reply = getMetrics();
+                        break;
+
+                    case MSG_REGISTER_CLIENT:
+                        if (msg.replyTo != null) {
+                            clients.add(msg.replyTo);
+                        }
+                        break;
+
+                    case MSG_SET_TASKS:
+                        onTaskReport(data.getInt(TASK_COUNT, -1), data.<Bundle>getParcelableArrayList(TASK_SCHEDULES));
+                        if (running > 0) {
+                            onActivity();
+                        }
+                        break;
+
+                    case MSG_APPEND_SAMPLES: {
+                        SampleSink sink = getSampleSink(ForegroundService.this);
+                        ArrayList<String> records = data.getStringArrayList("records");
+                        if (records != null) {
+                            for (String record : records) {
+                                sink.append(record);
+                            }
+                        }
+                        break;
+                    }
+
+                    case MSG_DRAIN_SAMPLES:
+                        reply = new Bundle();
+                        reply.putParcelableArrayList("segments", drainSamples(getSampleSink(ForegroundService.this),
+                            data.getInt("maxSegments", DRAIN_MAX_SEGMENTS), data.getInt("maxRecords", DRAIN_MAX_RECORDS),
+                            data.getBoolean("includeActive", false)));
+                        break;
+
+                    case MSG_COMMIT_SAMPLES: {
+                        SampleSink sink = getSampleSink(ForegroundService.this);
+                        ArrayList<String> segments = data.getStringArrayList("segments");
+                        int deleted = 0;
+                        if (segments != null) {
+                            for (String segment : segments) {
+                                if (sink.deleteSegment(segment)) {
+                                    deleted += 1;
+                                }
+                            }
+                        }
+                        reply = new Bundle();
+                        reply.putInt("deleted", deleted);
+                        break;
+                    }
+
+                    case MSG_GET_SAMPLE_STATS:
+                        reply = getSampleStats(getSampleSink(ForegroundService.this));
+                        break;
+
+                    case MSG_SET_EVENT_DELIVERY: {
+                        ArrayList<String> types = data.getStringArrayList("types");
+                        EventBatcher.getInstance().configureRemote(msg.replyTo,
+                            types != null ? new HashSet<>(types) : new HashSet<String>(),
+                            (long)data.getDouble("interval"));
+                        break;
+                    }
+
+                    case MSG_NOTIFICATION_CANCELLED:
+                        onNotificationCancelled(msg.arg1);
+                        break;
+
+                    default:
+                        super.handleMessage(msg);
+                        return;
+                }
+            }
+            catch (Exception e) {
+                Log.e("ForegroundService", "Failed to handle request " + msg.what + ": " + e.getMessage());
+                reply = new Bundle();
+            }
+
+            if (reply == null || msg.replyTo == null) {
+                return;
+            }
+
+            Message answer = Message.obtain(null, msg.what);
+            answer.arg1 = msg.arg1;
+            answer.setData(reply);
+            try {
+                msg.replyTo.send(answer);
+            }
+            catch (RemoteException e) {
+                Log.e("ForegroundService", "Failed to reply to UI process: " + e.getMessage());
+            }
+        }
+    }
+
+    // Cheap enough for isRunning and getSessions, which JS may call often
+    private Bundle getState(){
+        Bundle state = new Bundle();
+        state.putInt("running", running);
+        state.putBoolean("idle", idle);
+        state.putParcelableArrayList("sessions", new ArrayList<>(sessionInfo));
+        return state;
+    }
+
+    // Only for getMetrics, reading the process memory takes a while
+    private Bundle getMetrics(){
+        Bundle state = new Bundle();
+        state.putBundle("metrics", ServiceMetrics.getInstance().toBundle());
+        state.putBundle("events", EventBatcher.getInstance().getStats());
+        state.putBundle("power", getPowerState());
+
+        String processName = null;
+        try {
+            processName = getPackageManager()
+                .getServiceInfo(new ComponentName(this, ForegroundService.class), 0).processName;
+        }
+        catch (PackageManager.NameNotFoundException e) {
+            // reported without a name
+        }
+        state.putBundle("memory", ServiceMetrics.getProcessMemory(processName));
+        return state;
+    }
+
+    // Power state and the profile applied to it, also sent to JS on every profile change
+    public Bundle getPowerState(){
+        Bundle bundle = powerMonitor != null ? powerMonitor.toBundle() : new Bundle();
+        bundle.putString("profile", profile.name);
+        bundle.putDouble("loopScale", profile.loopScale);
+        bundle.putBoolean("pauseLowPriority", profile.pauseLowPriority);
+        bundle.putDouble("minNotificationInterval", profile.minNotificationInterval);
+        return bundle;
+    }
+
+    private NotificationManager getNotificationManager(){
+        return (NotificationManager)getSystemService(getApplicationContext().NOTIFICATION_SERVICE);
+    }
+
+    private Notification buildNotification(Bundle notificationConfig){
+        return NotificationHelper
+            .getInstance(getApplicationContext())
+            .buildNotification(getApplicationContext(), notificationConfig);
+    }
+
+    // Starts (or starts again) the session named in the config. Only the first session puts the
+    // service in the foreground, later ones and repeated starts just post their notification.
+    // startForeground gets a placeholder right away, the full notification is built on the
+    // build thread and replaces it.
     private boolean startService(Bundle notificationConfig){
+        ServiceSession created = null;
         try {
             int id = (int)notificationConfig.getDouble("id");
+            String sessionId = ServiceSession.idOf(notificationConfig);
 
-            Notification notification = NotificationHelper
-                .getInstance(getApplicationContext())
-                .buildNotification(getApplicationContext(), notificationConfig);
+            ServiceSession session = sessions.get(sessionId);
+            if(session == null){
+                session = created = new ServiceSession(sessionId);
+                sessions.put(sessionId, session);
+            }
+            int previousId = session.notificationId;
+            boolean idChanged = session.starts > 0 && previousId != id;
+
+            session.notificationConfig = notificationConfig;
+            session.notificationId = id;
+
+            if(foregroundSession == null || (foregroundSession == session && idChanged)){
+                startForeground(id, buildPlaceholder(notificationConfig));
+                foregroundSession = session;
+                lastNotificationConfig = notificationConfig;
+
+                if(startRequestedAt > 0){
+                    ServiceMetrics.getInstance().onForegroundStart(ServiceClock.elapsedRealtime() - startRequestedAt);
+                }
+            }
+            else if(foregroundSession == session){
+                lastNotificationConfig = notificationConfig;
+            }
+            postFullNotification(session, notificationConfig, startRequestedAt);
+            startRequestedAt = 0;
+            updateGroupSummaries(postedConfigs.put(id, notificationConfig), notificationConfig);
 
-            startForeground(id, notification);
+            if(idChanged){
+                getNotificationManager().cancel(previousId);
+                updateGroupSummaries(postedConfigs.remove(previousId), null);
+            }
 
+            session.starts += 1;
             running += 1;
 
-            lastNotificationConfig = notificationConfig;
+            saveSessions();
 
             return true;
 
         }
         catch (Exception e) {
             Log.e("ForegroundService", "Failed to start service: " + e.getMessage());
+            if(created != null && foregroundSession != created){
+                sessions.remove(created.id);
+            }
             return false;
         }
     }
-    public  Bundle taskConfig;
+
+    // startForeground has to be called in time whatever the config holds, a config the
+    // placeholder can't be built from gets a bare one instead
+    private Notification buildPlaceholder(Bundle config){
+        NotificationHelper helper = NotificationHelper.getInstance(getApplicationContext());
+        try {
+            return helper.buildPlaceholder(getApplicationContext(), config);
+        }
+        catch (Exception e) {
+            Log.e("ForegroundService", "Failed to build placeholder: " + e.getMessage());
+            return helper.buildPlaceholder(getApplicationContext(), new Bundle());
+        }
+    }
+
+    private Handler getBuildHandler(){
+        if(buildHandler == null){
+            HandlerThread thread = new HandlerThread("ForegroundServiceBuild");
+            thread.start();
+            buildHandler = new Handler(thread.getLooper());
+        }
+        return buildHandler;
+    }
+
+    // Builds the notification off the main thread and posts it, unless the session was updated
+    // or stopped in the meantime
+    private void postFullNotification(final ServiceSession session, final Bundle config, final long requestedAt){
+        getBuildHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                final Notification notification;
+                try {
+                    notification = buildNotification(config);
+                }
+                catch (Exception e) {
+                    Log.e("ForegroundService", "Failed to build notification: " + e.getMessage());
+                    return;
+                }
+                if(notification == null){
+                    return;
+                }
+
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if(sessions.get(session.id) != session || session.notificationConfig != config){
+                            return;
+                        }
+                        getNotificationManager().notify(session.notificationId, notification);
+                        ServiceMetrics.getInstance().onNotificationPost();
+                        if(requestedAt > 0){
+                            ServiceMetrics.getInstance().onFullNotification(ServiceClock.elapsedRealtime() - requestedAt);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private void stopSession(String sessionId){
+        ServiceSession session = sessions.get(sessionId);
+        if(session == null){
+            if(sessions.isEmpty()){
+                Log.d("ForegroundService", "Service is not running to stop.");
+                stopAll();
+            }
+            else{
+                Log.d("ForegroundService", "Session " + sessionId + " is not running to stop.");
+            }
+            return;
+        }
+
+        session.starts -= 1;
+        running = Math.max(0, running - 1);
+
+        if(session.starts <= 0){
+            endSession(session);
+        }
+        else{
+            saveSessions();
+        }
+    }
+
+    // Removes a session with its loop. If it owned the foreground notification another session
+    // takes over, so the service never leaves the foreground while a session is running.
+    private void endSession(ServiceSession session){
+        if(session.loop != null){
+            this.handler.removeCallbacks(session.loop);
+        }
+        sessions.remove(session.id);
+        running -= Math.max(0, session.starts);
+        running = Math.max(0, running);
+
+        if(session == foregroundSession){
+            foregroundSession = null;
+            lastNotificationConfig = null;
+
+            for(ServiceSession next : sessions.values()){
+                try {
+                    startForeground(next.notificationId, buildNotification(next.notificationConfig));
+                    ServiceMetrics.getInstance().onNotificationPost();
+                    foregroundSession = next;
+                    lastNotificationConfig = next.notificationConfig;
+                    break;
+                }
+                catch (Exception e) {
+                    Log.e("ForegroundService", "Failed to switch foreground notification: " + e.getMessage());
+                }
+            }
+
+            if(foregroundSession == null){
+                stopAll();
+                return;
+            }
+        }
+
+        if(foregroundSession == null || foregroundSession.notificationId != session.notificationId){
+            getNotificationManager().cancel(session.notificationId);
+            updateGroupSummaries(postedConfigs.remove(session.notificationId), null);
+        }
+        saveSessions();
+    }
+
+    private void stopAll(){
+        this.handler.removeCallbacksAndMessages(null);
+        // the notifications of the sessions end with them, and so do the group summaries
+        for(ServiceSession session : sessions.values()){
+            getNotificationManager().cancel(session.notificationId);
+        }
+        for(Integer summaryId : groupSummaries.values()){
+            getNotificationManager().cancel(summaryId);
+        }
+        groupSummaries.clear();
+        sessions.clear();
+        foregroundSession = null;
+        running = 0;
+        postedConfigs.clear();
+        heldUpdates.clear();
+        lastUpdateAt.clear();
+        lastNotificationConfig = null;
+        sessionInfo = new ArrayList<>();
+        StateSnapshot.getInstance(this).clear();
+        stopSelf();
+    }
+
+    // Stops a service that has nothing to run. When it was started with startForegroundService
+    // it still has to go through startForeground first, or the app is killed once the deadline is over.
+    private void stopSelfForeground(Intent intent){
+        if(intent.getBooleanExtra(FOREGROUND_REQUIRED, false) && foregroundSession == null){
+            try {
+                Bundle config = lastNotificationConfig != null ? lastNotificationConfig : new Bundle();
+                startForeground(lastNotificationConfig != null ? (int)config.getDouble("id") : FALLBACK_NOTIFICATION_ID,
+                    buildPlaceholder(config));
+                stopForeground(true);
+            }
+            catch (Exception e) {
+                Log.e("ForegroundService", "Failed to satisfy foreground start: " + e.getMessage());
+            }
+        }
+        stopSelf();
+    }
+
+    private void saveSessions(){
+        List<Bundle> info = new ArrayList<>(sessions.size());
+        for(ServiceSession session : sessions.values()){
+            Bundle bundle = new Bundle();
+            bundle.putString("sessionId", session.id);
+            bundle.putInt("notificationId", session.notificationId);
+            bundle.putInt("starts", session.starts);
+            bundle.putBoolean("foreground", session == foregroundSession);
+            bundle.putBoolean("loop", session.hasLoop());
+            info.add(bundle);
+        }
+        sessionInfo = info;
+
+        StateSnapshot.getInstance(this).setSessions(sessions.values(),
+            foregroundSession != null ? foregroundSession.id : null);
+    }
+
+    // Loop of a session, runs its headless task every loopDelay. Everything a tick needs is
+    // prepared by startLoop, so a steady state tick allocates nothing on our side.
+    private class SessionLoop implements Runnable {
+        private final ServiceSession session;
+
+        SessionLoop(ServiceSession session){
+            this.session = session;
+        }
+
+        @Override
+        public void run() {
+            if(isIdleDue()){
+                enterIdle(session.loopDelay);
+                return;
+            }
+
+            getApplicationContext().startService(session.tickIntent);
+            long lateness = Math.max(0, ServiceClock.uptimeMillis() - session.nextTickAt);
+            ServiceMetrics.getInstance().onLoopTick(lateness);
+            ServiceMetrics.getInstance().onHeadlessTask();
+
+            EventBatcher events = EventBatcher.getInstance();
+            if(events.wants(EventBatcher.TYPE_TICK)){
+                Bundle event = new Bundle();
+                event.putString("sessionId", session.id);
+                event.putDouble("lateness", lateness);
+                events.emit(EventBatcher.TYPE_TICK, event);
+            }
+
+            scheduleLoop(session, profile.scale(session.loopDelay));
+        }
+    }
+
     private Handler handler = new Handler();
-    private Runnable runnableCode = new Runnable() {
-      @Override
-      public void run() {
-        final Intent service = new Intent(getApplicationContext(), ForegroundServiceTask.class);
-        service.putExtras(taskConfig);
-        getApplicationContext().startService(service);
 
-        int delay = (int)taskConfig.getDouble("delay");
+    private void startLoop(ServiceSession session, Bundle config, long anchor, long delay){
+        session.loopConfig = config;
+        session.loopDelay = (long)config.getDouble("loopDelay");
+        session.loopAnchor = anchor;
+        session.tickIntent = buildTickIntent(config);
+        if(session.loop == null){
+            session.loop = new SessionLoop(session);
+        }
+        readIdlePolicy(config);
+        readProfiles(config);
+        scheduleLoop(session, delay);
+    }
+
+    // The intent is sent again on every tick. It only carries what the JS task runner reads, so
+    // the task side has a small bundle to unparcel and convert instead of the whole loop config.
+    private Intent buildTickIntent(Bundle config){
+        Intent intent = new Intent(getApplicationContext(), ForegroundServiceTask.class);
+        intent.putExtra("taskName", config.getString("taskName"));
+        if(config.containsKey("sessionId")){
+            intent.putExtra("sessionId", config.getString("sessionId"));
+        }
+        if(config.getBoolean("restored", false)){
+            intent.putExtra("restored", true);
+        }
+        // rebuilt on profile changes, the JS runner scales its own task delays with these
+        intent.putExtra("profile", profile.name);
+        intent.putExtra("loopScale", profile.loopScale);
+        intent.putExtra("pauseLowPriority", profile.pauseLowPriority);
+        return intent;
+    }
 
-          int loopDelay = (int)taskConfig.getDouble("loopDelay");
-          Log.d("SuperLog",""+loopDelay);
-        handler.postDelayed(this, loopDelay);
-      }
-    };
+    private void scheduleLoop(ServiceSession session, long delay){
+        this.handler.removeCallbacks(session.loop);
+        // uptime the next tick is due at, to measure how late ticks run
+        session.nextTickAt = ServiceClock.uptimeMillis() + delay;
+        this.handler.postDelayed(session.loop, delay);
+    }
+
+    private boolean isIdleDue(){
+        return idleTimeout > 0 && taskCount == 0
+            && ServiceClock.elapsedRealtime() - lastActivity >= idleTimeout;
+    }
+
+    // Stops ticking and drops caches while there is no work. The foreground notification is kept
+    // unless stopOnIdle is set. No wakelock is held meanwhile since no headless task is started.
+    private void enterIdle(long loopDelay){
+        if(idle){
+            return;
+        }
+        idle = true;
+        Log.d("ForegroundService", "No tasks registered, entering idle.");
+
+        // notification swaps and group summary updates still have to go through
+        for(ServiceSession session : sessions.values()){
+            if(session.loop != null){
+                this.handler.removeCallbacks(session.loop);
+            }
+        }
+        this.handler.removeCallbacksAndMessages(DELAYED_TASKS);
+        this.handler.removeCallbacks(releaseHeldUpdates);
+        NotificationHelper.release();
+        ServiceMetrics.getInstance().onIdleEnter(loopDelay);
+        emitIdle(true);
+
+        if(stopOnIdle){
+            ServiceMetrics.getInstance().onIdleStop();
+            idleStopped = true;
+            running = 0;
+            notifyIdleStopped();
+            stopSelf();
+        }
+    }
+
+    // In separate process mode the UI process can't see idleStopped, it is told instead so it
+    // knows to bring the service back for new tasks
+    private void notifyIdleStopped(){
+        for(Messenger client : clients){
+            try{
+                client.send(Message.obtain(null, MSG_IDLE_STOPPED));
+            }
+            catch(RemoteException e){
+                // that process is gone
+            }
+        }
+        clients.clear();
+    }
+
+    // Task count and, in separate process mode, the schedules the UI process sends along since
+    // only this process writes the snapshot
+    private void onTaskReport(int count, ArrayList<Bundle> schedules){
+        taskCount = count;
+        if(schedules != null){
+            StateSnapshot.getInstance(this).setTasks(StateSnapshot.toSchedules(schedules));
+        }
+    }
+
+    private void exitIdle(){
+        if(!idle){
+            return;
+        }
+        idle = false;
+        Log.d("ForegroundService", "Leaving idle.");
+
+        ServiceMetrics.getInstance().onIdleExit();
+        emitIdle(false);
+        for(ServiceSession session : sessions.values()){
+            if(session.hasLoop()){
+                scheduleLoop(session, 0);
+            }
+        }
+        scheduleHeldUpdates();
+    }
+
+    private void onActivity(){
+        lastActivity = ServiceClock.elapsedRealtime();
+        if(idle && taskCount != 0){
+            exitIdle();
+        }
+    }
+
+    private void emitIdle(boolean idle){
+        if(EventBatcher.getInstance().wants(EventBatcher.TYPE_IDLE)){
+            Bundle event = new Bundle();
+            event.putBoolean("idle", idle);
+            event.putBoolean("stopped", idle && stopOnIdle);
+            EventBatcher.getInstance().emit(EventBatcher.TYPE_IDLE, event);
+        }
+    }
+
+    // The policy is service wide, loop configs without it (e.g. of sessions) keep the current one
+    private void readIdlePolicy(Bundle config){
+        if(config.containsKey("idleTimeout")){
+            idleTimeout = (long)config.getDouble("idleTimeout", 0);
+        }
+        if(config.containsKey("stopOnIdle")){
+            stopOnIdle = config.getBoolean("stopOnIdle", false);
+        }
+    }
+
+    // Loop configs without profiles keep the overrides given so far
+    private void readProfiles(Bundle config){
+        Bundle profiles = config.getBundle("profiles");
+        if(profiles != null){
+            profileOverrides = profiles;
+            profile = ExecutionProfile.resolve(profile.name, profileOverrides);
+        }
+    }
+
+    // Switches to the profile of the new power state. Pending ticks are brought forward when the
+    // new profile is faster, slower ones simply take effect from the next tick on.
+    private void applyProfile(String name){
+        profile = ExecutionProfile.resolve(name, profileOverrides);
+        ServiceMetrics.getInstance().onProfileChange(name);
+        Log.d("ForegroundService", "Execution profile changed to " + name + ".");
+
+        long now = ServiceClock.uptimeMillis();
+        for(ServiceSession session : sessions.values()){
+            if(!session.hasLoop() || session.loop == null){
+                continue;
+            }
+            session.tickIntent = buildTickIntent(session.loopConfig);
+            if(!idle){
+                long remaining = Math.max(0, session.nextTickAt - now);
+                scheduleLoop(session, Math.min(remaining, profile.scale(session.loopDelay)));
+            }
+        }
+        scheduleHeldUpdates();
+
+        if(EventBatcher.getInstance().wants(EventBatcher.TYPE_PROFILE)){
+            EventBatcher.getInstance().emit(EventBatcher.TYPE_PROFILE, getPowerState());
+        }
+    }
+
+    // Splits updates into the ones that can be posted now and the ones held back by the
+    // profile's minNotificationInterval, which are posted when their interval is over
+    private List<Bundle> throttleUpdates(List<Bundle> configs){
+        long interval = profile.minNotificationInterval;
+        long now = ServiceClock.uptimeMillis();
+        List<Bundle> ready = new ArrayList<>(configs.size());
+        boolean held = false;
+
+        for(Bundle config : configs){
+            int id = (int)config.getDouble("id");
+            Long last = lastUpdateAt.get(id);
+            if(interval <= 0 || last == null || now - last >= interval){
+                heldUpdates.remove(id);
+                lastUpdateAt.put(id, now);
+                ready.add(config);
+            }
+            else{
+                if(heldUpdates.put(id, config) != null){
+                    // the previous held update is replaced and never posted
+                    ServiceMetrics.getInstance().onNotificationUpdateCoalesced();
+                }
+                held = true;
+            }
+        }
+
+        if(held){
+            scheduleHeldUpdates();
+        }
+        return ready;
+    }
+
+    private void scheduleHeldUpdates(){
+        this.handler.removeCallbacks(releaseHeldUpdates);
+        if(heldUpdates.isEmpty()){
+            return;
+        }
+
+        long now = ServiceClock.uptimeMillis();
+        long delay = Long.MAX_VALUE;
+        for(Integer id : heldUpdates.keySet()){
+            Long last = lastUpdateAt.get(id);
+            long due = last != null ? last + profile.minNotificationInterval - now : 0;
+            delay = Math.min(delay, Math.max(0, due));
+        }
+        this.handler.postDelayed(releaseHeldUpdates, delay);
+    }
+
+    // Restores the sessions saved before the process died, without waiting for JS to start
+    // the service again. Returns true if the service was restored.
+    private boolean restoreSnapshot(){
+        if(running > 0){
+            return false;
+        }
+
+        long now = ServiceClock.currentTimeMillis();
+        boolean restored = false;
+
+        for(ServiceSession saved : StateSnapshot.getInstance(this).getSessions()){
+            if(saved.notificationConfig == null){
+                continue;
+            }
+            // a session started several times is restored with a single start
+            if(!startService(saved.notificationConfig)){
+                continue;
+            }
+            restored = true;
+
+            if(saved.hasLoop()){
+                Bundle loopConfig = new Bundle(saved.loopConfig);
+                // lets the JS task runner know the session is running even though start was not called yet
+                loopConfig.putBoolean("restored", true);
+
+                startLoop(sessions.get(ServiceSession.idOf(saved.notificationConfig)), loopConfig, saved.loopAnchor,
+                    StateSnapshot.getLoopDelay(saved, now));
+            }
+        }
+
+        if(restored){
+            saveSessions();
+            Log.d("ForegroundService", "Service restored from snapshot.");
+        }
+        return restored;
+    }
 
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
-        String action = intent.getAction();
+        boolean restored = false;
+        if(intent == null || (flags & START_FLAG_REDELIVERY) != 0){
+            restored = restoreSnapshot();
+        }
+
+        String action = intent != null ? intent.getAction() : null;
 
         /**
         From the docs:
@@ -124,11 +998,21 @@ public class ForegroundService extends Service {
         //Log.d("ForegroundService", "onStartCommand flags: " + String.valueOf(flags) + "  " + String.valueOf(startId));
 
         if (action != null) {
-            if (action.equals(Constants.ACTION_FOREGROUND_SERVICE_START)) {
+            if (action.equals(Constants.ACTION_FOREGROUND_SERVICE_START) && !restored) {
                 if (intent.getExtras() != null && intent.getExtras().containsKey(NOTIFICATION_CONFIG)) {
                     Bundle notificationConfig = intent.getExtras().getBundle(NOTIFICATION_CONFIG);
 
-                    startService(notificationConfig);
+                    // a start redelivered after the process died was already counted if its
+                    // session came back from the snapshot
+                    if ((flags & START_FLAG_REDELIVERY) == 0
+                            || !sessions.containsKey(ServiceSession.idOf(notificationConfig))) {
+                        startRequestedAt = intent.getLongExtra(START_REQUESTED_AT, 0);
+                        if (!startService(notificationConfig) && foregroundSession == null) {
+                            // nothing runs, but the foreground start still has to be met
+                            stopSelfForeground(intent);
+                            return START_NOT_STICKY;
+                        }
+                    }
 
                 }
             }
@@ -144,22 +1028,31 @@ public class ForegroundService extends Service {
                     else{
 
                         try {
-                            int id = (int)notificationConfig.getDouble("id");
+                            if(!throttleUpdates(Collections.singletonList(notificationConfig)).isEmpty()){
+                                int id = (int)notificationConfig.getDouble("id");
 
-                            Notification notification = NotificationHelper
-                                .getInstance(getApplicationContext())
-                                .buildNotification(getApplicationContext(), notificationConfig);
+                                Notification notification = buildNotification(notificationConfig);
 
-                            NotificationManager mNotificationManager=(NotificationManager)getSystemService(getApplicationContext().NOTIFICATION_SERVICE);
-                            mNotificationManager.notify(id, notification);
+                                getNotificationManager().notify(id, notification);
+                                ServiceMetrics.getInstance().onNotificationPost();
+                                updateGroupSummaries(postedConfigs.put(id, notificationConfig), notificationConfig);
 
-                            lastNotificationConfig = notificationConfig;
+                                ServiceSession session = sessions.get(ServiceSession.idOf(notificationConfig));
+                                if(session != null && session.notificationId == id){
+                                    session.notificationConfig = notificationConfig;
+                                    if(session == foregroundSession){
+                                        lastNotificationConfig = notificationConfig;
+                                    }
+                                    saveSessions();
+                                }
+                            }
 
                         }
                         catch (Exception e) {
                             Log.e("ForegroundService", "Failed to update notification: " + e.getMessage());
                         }
                     }
+                    onActivity();
 
                 }
             }
@@ -167,14 +1060,18 @@ public class ForegroundService extends Service {
             else if (action.equals(Constants.ACTION_FOREGROUND_RUN_TASK)){
                 if(running <= 0 && lastNotificationConfig == null){
                     Log.e("ForegroundService", "Service is not running to run tasks.");
-                    stopSelf();
+                    stopSelfForeground(intent);
                     return START_NOT_STICKY;
                 }
                 else{
 
-                    // try to re-start service if it was killed
+                    // try to re-start service if it was killed or stopped while idle
                     if(running <= 0){
                         Log.d("ForegroundService", "Run Task called without a running service, trying to restart service.");
+                        if(idleStopped){
+                            idleStopped = false;
+                            ServiceMetrics.getInstance().onIdleExit();
+                        }
                         if(!startService(lastNotificationConfig)){
                             Log.e("ForegroundService", "Service is not running to run tasks.");
                             return START_REDELIVER_INTENT;
@@ -182,12 +1079,33 @@ public class ForegroundService extends Service {
                     }
 
                     if (intent.getExtras() != null && intent.getExtras().containsKey(TASK_CONFIG)) {
-                        taskConfig = intent.getExtras().getBundle(TASK_CONFIG);
+                        Bundle taskConfig = intent.getExtras().getBundle(TASK_CONFIG);
+
+                        // loops belong to the session they name, unnamed ones fall back to the foreground one
+                        ServiceSession session = sessions.get(ServiceSession.idOf(taskConfig));
+                        if(session == null && !taskConfig.containsKey("sessionId")){
+                            session = foregroundSession;
+                        }
+
+                        // the loop was already resumed from the snapshot, keep its cadence
+                        if (restored && session != null && session.hasLoop()) {
+                            return START_REDELIVER_INTENT;
+                        }
 
                         try {
 
                              if( taskConfig.getBoolean("onLoop") == true) {
-                                 this.handler.post(this.runnableCode);
+                                 if(session == null){
+                                     Log.e("ForegroundService", "Session " + ServiceSession.idOf(taskConfig) + " is not running to loop.");
+                                     return START_REDELIVER_INTENT;
+                                 }
+
+                                 // the other sessions' loops and the held updates resume too
+                                 exitIdle();
+                                 lastActivity = ServiceClock.elapsedRealtime();
+
+                                 startLoop(session, taskConfig, ServiceClock.currentTimeMillis(), 0);
+                                 saveSessions();
                              }else{
                                  this.runHeadlessTask(taskConfig);
                              }
@@ -201,28 +1119,57 @@ public class ForegroundService extends Service {
                 }
             }
 
-            else if (action.equals(Constants.ACTION_FOREGROUND_SERVICE_STOP)) {
-                if(running > 0){
-                    running -= 1;
+            else if (action.equals(Constants.ACTION_UPDATE_NOTIFICATIONS)) {
+                ArrayList<Bundle> configs = intent.getParcelableArrayListExtra(NOTIFICATION_CONFIGS);
 
-                    if (running == 0){
-                        stopSelf();
-                        lastNotificationConfig = null;
+                if (configs != null && !configs.isEmpty()) {
+                    if(running <= 0){
+                        Log.d("ForegroundService", "Update Notifications called without a running service, trying to restart service.");
+                        startService(configs.get(0));
                     }
+                    postNotifications(throttleUpdates(configs));
                 }
-                else{
-                    Log.d("ForegroundService", "Service is not running to stop.");
-                    stopSelf();
-                    lastNotificationConfig = null;
+                onActivity();
+            }
+
+            else if (action.equals(Constants.ACTION_TASK_ACTIVITY)) {
+                onTaskReport(intent.getIntExtra(TASK_COUNT, -1),
+                    intent.<Bundle>getParcelableArrayListExtra(TASK_SCHEDULES));
+
+                if(running <= 0){
+                    // the service stopped itself while idle, bring it back transparently. The
+                    // module only sets FOREGROUND_REQUIRED for that restart, so it also tells a
+                    // service process that did not survive the stop.
+                    boolean restart = idleStopped || intent.getBooleanExtra(FOREGROUND_REQUIRED, false);
+                    if(restart && taskCount > 0){
+                        idleStopped = false;
+                        ServiceMetrics.getInstance().onIdleExit();
+                        if(!restoreSnapshot()){
+                            stopSelfForeground(intent);
+                            return START_NOT_STICKY;
+                        }
+                    }
+                    else{
+                        stopSelfForeground(intent);
+                        return START_NOT_STICKY;
+                    }
                 }
+                onActivity();
+            }
+
+            else if (action.equals(Constants.ACTION_FOREGROUND_SERVICE_STOP)) {
+                idleStopped = false;
+                ServiceMetrics.getInstance().onIdleExit();
+                String sessionId = intent.getStringExtra(SESSION_ID);
+                stopSession(sessionId != null ? sessionId : ServiceSession.DEFAULT_ID);
                 return START_NOT_STICKY;
 
             }
             else if (action.equals(Constants.ACTION_FOREGROUND_SERVICE_STOP_ALL)) {
-                running = 0;
+                idleStopped = false;
+                ServiceMetrics.getInstance().onIdleExit();
+                stopAll();
                 mInstance = null;
-                lastNotificationConfig = null;
-                stopSelf();
                 return START_NOT_STICKY;
             }
         }
@@ -235,6 +1182,127 @@ public class ForegroundService extends Service {
 
     
 
+    // Posts several notifications in one go. Notifications whose config did not change are not
+    // re-posted, and each group gets a single summary posted after its children.
+    private void postNotifications(List<Bundle> configs){
+        NotificationHelper helper = NotificationHelper.getInstance(getApplicationContext());
+        NotificationManager mNotificationManager=(NotificationManager)getSystemService(getApplicationContext().NOTIFICATION_SERVICE);
+
+        Set<String> changedGroups = new LinkedHashSet<>();
+        int foregroundId = foregroundSession != null ? foregroundSession.notificationId : -1;
+        boolean sessionsChanged = false;
+
+        for (Bundle config : configs) {
+            try {
+                int id = (int)config.getDouble("id");
+                Bundle previous = postedConfigs.get(id);
+
+                if (NotificationHelper.sameConfig(previous, config)) {
+                    continue;
+                }
+
+                mNotificationManager.notify(id, helper.buildNotification(getApplicationContext(), config));
+                ServiceMetrics.getInstance().onNotificationPost();
+                postedConfigs.put(id, config);
+                collectGroupChanges(previous, config, changedGroups);
+
+                if (id == foregroundId) {
+                    lastNotificationConfig = config;
+                    foregroundSession.notificationConfig = config;
+                    sessionsChanged = true;
+                }
+                else {
+                    // held updates of other sessions are released through here too
+                    ServiceSession session = sessions.get(ServiceSession.idOf(config));
+                    if (session != null && session.notificationId == id) {
+                        session.notificationConfig = config;
+                        sessionsChanged = true;
+                    }
+                }
+            }
+            catch (Exception e) {
+                Log.e("ForegroundService", "Failed to update notification: " + e.getMessage());
+            }
+        }
+
+        // one summary per changed group, posted after its children
+        for (String group : changedGroups) {
+            updateGroupSummary(group);
+        }
+
+        if (sessionsChanged) {
+            saveSessions();
+        }
+    }
+
+    // Groups whose summary has to change because a notification joined, left or was renamed.
+    // previous is the config posted before, config the new one or null when it was removed.
+    private static void collectGroupChanges(Bundle previous, Bundle config, Set<String> groups){
+        String group = config != null ? config.getString("group") : null;
+        String previousGroup = previous != null ? previous.getString("group") : null;
+        if (group != null && (previous == null || !group.equals(previousGroup)
+            || !TextUtils.equals(previous.getString("title"), config.getString("title")))) {
+            groups.add(group);
+        }
+        if (previousGroup != null && !previousGroup.equals(group)) {
+            groups.add(previousGroup);
+        }
+    }
+
+    private void updateGroupSummaries(Bundle previous, Bundle config){
+        Set<String> groups = new LinkedHashSet<>();
+        collectGroupChanges(previous, config, groups);
+        for (String group : groups) {
+            updateGroupSummary(group);
+        }
+    }
+
+    // Posts the summary of a group from every notification currently posted in it, not just the
+    // ones of the last update, or cancels it once the group is empty
+    private void updateGroupSummary(String group){
+        List<Bundle> children = new ArrayList<>();
+        for (Bundle config : postedConfigs.values()) {
+            if (group.equals(config.getString("group"))) {
+                children.add(config);
+            }
+        }
+        Collections.sort(children, new Comparator<Bundle>() {
+            @Override
+            public int compare(Bundle a, Bundle b) {
+                return Double.compare(a.getDouble("id"), b.getDouble("id"));
+            }
+        });
+
+        NotificationManager manager = getNotificationManager();
+        if (children.isEmpty()) {
+            Integer summaryId = groupSummaries.remove(group);
+            if (summaryId != null) {
+                manager.cancel(summaryId);
+            }
+            return;
+        }
+
+        // required with group by the module, a config restored from an older snapshot may still miss it
+        if (!children.get(0).containsKey("groupSummaryId")) {
+            Log.w("ForegroundService", "No groupSummaryId for group " + group + ", summary not posted");
+            return;
+        }
+
+        try {
+            int summaryId = (int)children.get(0).getDouble("groupSummaryId");
+            Integer previousId = groupSummaries.put(group, summaryId);
+            if (previousId != null && previousId != summaryId) {
+                manager.cancel(previousId);
+            }
+            manager.notify(summaryId, NotificationHelper.getInstance(getApplicationContext())
+                .buildGroupSummary(getApplicationContext(), group, children));
+            ServiceMetrics.getInstance().onNotificationPost();
+        }
+        catch (Exception e) {
+            Log.e("ForegroundService", "Failed to post group summary: " + e.getMessage());
+        }
+    }
+
     public void runHeadlessTask(Bundle bundle){
         final Intent service = new Intent(getApplicationContext(), ForegroundServiceTask.class);
         service.putExtras(bundle);
@@ -243,13 +1311,15 @@ public class ForegroundService extends Service {
 
         if(delay <= 0){
             getApplicationContext().startService(service);
+            ServiceMetrics.getInstance().onHeadlessTask();
 
             // wakelock should be released automatically by the task
             // Shouldn't be needed, it's called automatically by headless
             //HeadlessJsTaskService.acquireWakeLockNow(getApplicationContext());
         }
         else{
-            new Handler().postDelayed(new Runnable() {
+            // posted on the service handler so idle and destroy can cancel it
+            this.handler.postAtTime(new Runnable() {
                 @Override
                 public void run() {
                     if(running <= 0){
@@ -257,12 +1327,13 @@ public class ForegroundService extends Service {
                     }
                     try{
                         getApplicationContext().startService(service);
+                        ServiceMetrics.getInstance().onHeadlessTask();
                     }
                     catch (Exception e) {
                         Log.e("ForegroundService", "Failed to start delayed headless task: " + e.getMessage());
                     }
                 }
-            }, delay);
+            }, DELAYED_TASKS, SystemClock.uptimeMillis() + delay);
         }
 
 
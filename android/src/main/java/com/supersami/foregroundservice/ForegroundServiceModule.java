@@ -4,28 +4,63 @@ import android.content.ComponentName;
 import android.content.Intent;
 import android.app.NotificationManager;
 import android.os.Build;
+import android.os.Bundle;
 import android.util.Log;
 
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import androidx.core.content.ContextCompat;
+
 import com.facebook.react.bridge.Arguments;
 import com.facebook.react.bridge.Promise;
 import com.facebook.react.bridge.ReactApplicationContext;
 import com.facebook.react.bridge.ReactContextBaseJavaModule;
 import com.facebook.react.bridge.ReactMethod;
+import com.facebook.react.bridge.ReadableArray;
 import com.facebook.react.bridge.ReadableMap;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
 
 import static com.supersami.foregroundservice.Constants.ERROR_INVALID_CONFIG;
 import static com.supersami.foregroundservice.Constants.ERROR_SERVICE_ERROR;
+import static com.supersami.foregroundservice.Constants.FOREGROUND_REQUIRED;
 import static com.supersami.foregroundservice.Constants.NOTIFICATION_CONFIG;
+import static com.supersami.foregroundservice.Constants.NOTIFICATION_CONFIGS;
+import static com.supersami.foregroundservice.Constants.SESSION_ID;
 import static com.supersami.foregroundservice.Constants.TASK_CONFIG;
+import static com.supersami.foregroundservice.Constants.START_REQUESTED_AT;
+import static com.supersami.foregroundservice.Constants.TASK_COUNT;
+import static com.supersami.foregroundservice.Constants.TASK_SCHEDULES;
 
 
 public class ForegroundServiceModule extends ReactContextBaseJavaModule {
 
     private final ReactApplicationContext reactContext;
+    // set when the service runs in its own process, everything that is not an Intent goes through it
+    private final ServiceClient client;
 
     public ForegroundServiceModule(ReactApplicationContext reactContext) {
         super(reactContext);
         this.reactContext = reactContext;
+        EventBatcher.getInstance().attach(reactContext);
+
+        if (ServiceClient.isRemote(reactContext)) {
+            client = new ServiceClient(reactContext);
+            client.bind();
+        } else {
+            client = null;
+        }
+    }
+
+    @Override
+    public void onCatalystInstanceDestroy() {
+        EventBatcher.getInstance().detach(reactContext);
+        if (client != null) {
+            client.unbind();
+        }
     }
 
     @Override
@@ -66,17 +101,22 @@ public class ForegroundServiceModule extends ReactContextBaseJavaModule {
             return;
         }
 
+        if (!hasGroupSummaryId(notificationConfig)) {
+            promise.reject(ERROR_INVALID_CONFIG, "ForegroundService: groupSummaryId is required with group");
+            return;
+        }
+
         try{
             Intent intent = new Intent(getReactApplicationContext(), ForegroundService.class);
             intent.setAction(Constants.ACTION_FOREGROUND_SERVICE_START);
             intent.putExtra(NOTIFICATION_CONFIG, Arguments.toBundle(notificationConfig));
-            ComponentName componentName = getReactApplicationContext().startService(intent);
+            intent.putExtra(START_REQUESTED_AT, ServiceClock.elapsedRealtime());
+            intent.putExtra(FOREGROUND_REQUIRED, true);
 
-            if (componentName != null) {
-                promise.resolve(null);
-            } else {
-                promise.reject(ERROR_SERVICE_ERROR, "ForegroundService: Foreground service failed to start.");
-            }
+            // allowed from the background too, the service calls startForeground on a placeholder
+            // notification right away to meet the 5 second deadline
+            ContextCompat.startForegroundService(getReactApplicationContext(), intent);
+            promise.resolve(null);
         }
         catch(IllegalStateException e){
             promise.reject(ERROR_SERVICE_ERROR, "ForegroundService: Foreground service failed to start.");
@@ -105,6 +145,11 @@ public class ForegroundServiceModule extends ReactContextBaseJavaModule {
             return;
         }
 
+        if (!hasGroupSummaryId(notificationConfig)) {
+            promise.reject(ERROR_INVALID_CONFIG, "ForegroundService: groupSummaryId is required with group");
+            return;
+        }
+
         try{
 
             Intent intent = new Intent(getReactApplicationContext(), ForegroundService.class);
@@ -123,6 +168,47 @@ public class ForegroundServiceModule extends ReactContextBaseJavaModule {
         }
     }
 
+    // Updates several notifications with a single service command, e.g. one per feature
+    // in the same group. Unchanged notifications are not re-posted.
+    @ReactMethod
+    public void updateNotifications(ReadableArray notificationConfigs, Promise promise) {
+        if (notificationConfigs == null || notificationConfigs.size() == 0) {
+            promise.reject(ERROR_INVALID_CONFIG, "ForegroundService: Notification configs are invalid");
+            return;
+        }
+
+        ArrayList<Bundle> configs = new ArrayList<>(notificationConfigs.size());
+        for (int i = 0; i < notificationConfigs.size(); i++) {
+            ReadableMap notificationConfig = notificationConfigs.getMap(i);
+            if (notificationConfig == null || !notificationConfig.hasKey("id")
+                || !notificationConfig.hasKey("title") || !notificationConfig.hasKey("message")) {
+                promise.reject(ERROR_INVALID_CONFIG, "ForegroundService: id, title and message are required");
+                return;
+            }
+            if (!hasGroupSummaryId(notificationConfig)) {
+                promise.reject(ERROR_INVALID_CONFIG, "ForegroundService: groupSummaryId is required with group");
+                return;
+            }
+            configs.add(Arguments.toBundle(notificationConfig));
+        }
+
+        try{
+            Intent intent = new Intent(getReactApplicationContext(), ForegroundService.class);
+            intent.setAction(Constants.ACTION_UPDATE_NOTIFICATIONS);
+            intent.putParcelableArrayListExtra(NOTIFICATION_CONFIGS, configs);
+            ComponentName componentName = getReactApplicationContext().startService(intent);
+
+            if (componentName != null) {
+                promise.resolve(null);
+            } else {
+                promise.reject(ERROR_SERVICE_ERROR, "Update notifications failed.");
+            }
+        }
+        catch(IllegalStateException e){
+            promise.reject(ERROR_SERVICE_ERROR, "Update notifications failed, service failed to start.");
+        }
+    }
+
     // helper to dismiss a notification. Useful if we used multiple notifications
     // for our service since stopping the foreground service will only dismiss one notification
     @ReactMethod
@@ -143,6 +229,14 @@ public class ForegroundServiceModule extends ReactContextBaseJavaModule {
             NotificationManager mNotificationManager=(NotificationManager)this.reactContext.getSystemService(this.reactContext.NOTIFICATION_SERVICE);
             mNotificationManager.cancel(id);
 
+            ForegroundService instance = ForegroundService.getInstance();
+            if (instance != null) {
+                instance.onNotificationCancelled(id);
+            }
+            else if (client != null) {
+                client.send(Constants.MSG_NOTIFICATION_CANCELLED, id, null);
+            }
+
             promise.resolve(null);
         }
         catch(Exception e){
@@ -182,6 +276,58 @@ public class ForegroundServiceModule extends ReactContextBaseJavaModule {
         promise.resolve(null);
     }
 
+    // Stops one session, the service keeps running in the foreground while other sessions remain
+    @ReactMethod
+    public void stopSession(String sessionId, Promise promise) {
+        Intent intent = new Intent(getReactApplicationContext(), ForegroundService.class);
+        intent.setAction(Constants.ACTION_FOREGROUND_SERVICE_STOP);
+        intent.putExtra(SESSION_ID, sessionId);
+
+        try{
+            getReactApplicationContext().startService(intent);
+        }
+        catch(IllegalStateException e){
+            promise.reject(ERROR_SERVICE_ERROR, "Session stop failed: " + e.getMessage());
+            return;
+        }
+
+        promise.resolve(null);
+    }
+
+    @ReactMethod
+    public void getSessions(final Promise promise) {
+        if (client != null) {
+            client.request(Constants.MSG_GET_STATE, null, new ServiceClient.Callback() {
+                @Override
+                public void onReply(Bundle reply) {
+                    List<Bundle> sessions = reply != null ? reply.<Bundle>getParcelableArrayList("sessions") : null;
+                    promise.resolve(toArray(sessions));
+                }
+            });
+            return;
+        }
+
+        ForegroundService instance = ForegroundService.getInstance();
+        promise.resolve(toArray(instance != null ? instance.getSessionInfo() : null));
+    }
+
+    // The summary of a group is posted under an id of the app's choosing, any id derived from the
+    // group name could collide with one of its own notifications
+    private static boolean hasGroupSummaryId(ReadableMap notificationConfig) {
+        return !notificationConfig.hasKey("group") || notificationConfig.isNull("group")
+            || (notificationConfig.hasKey("groupSummaryId") && !notificationConfig.isNull("groupSummaryId"));
+    }
+
+    private static WritableArray toArray(List<Bundle> bundles) {
+        WritableArray result = Arguments.createArray();
+        if (bundles != null) {
+            for (Bundle bundle : bundles) {
+                result.pushMap(Arguments.fromBundle(bundle));
+            }
+        }
+        return result;
+    }
+
     @ReactMethod
     public void stopServiceAll(Promise promise) {
 
@@ -224,6 +370,17 @@ public class ForegroundServiceModule extends ReactContextBaseJavaModule {
             intent.setAction(Constants.ACTION_FOREGROUND_RUN_TASK);
             intent.putExtra(TASK_CONFIG, Arguments.toBundle(taskConfig));
 
+            boolean idleStopped = client != null ? client.isIdleStopped()
+                : ForegroundService.getInstance() == null && ForegroundService.isIdleStopped();
+            if (idleStopped) {
+                if (restartIdleService(intent)) {
+                    promise.resolve(null);
+                } else {
+                    promise.reject(ERROR_SERVICE_ERROR, "Failed to run task: Service could not be restarted from the background");
+                }
+                return;
+            }
+
             ComponentName componentName = getReactApplicationContext().startService(intent);
 
             if (componentName != null) {
@@ -238,7 +395,16 @@ public class ForegroundServiceModule extends ReactContextBaseJavaModule {
     }
 
     @ReactMethod
-    public void isRunning(Promise promise) {
+    public void isRunning(final Promise promise) {
+        if (client != null) {
+            client.request(Constants.MSG_GET_STATE, null, new ServiceClient.Callback() {
+                @Override
+                public void onReply(Bundle reply) {
+                    promise.resolve(reply != null ? reply.getInt("running") : 0);
+                }
+            });
+            return;
+        }
 
         // Get the ForegroundService running value
         ForegroundService instance = ForegroundService.getInstance();
@@ -250,4 +416,330 @@ public class ForegroundServiceModule extends ReactContextBaseJavaModule {
         promise.resolve(res);
     }
 
-}
\ No newline at end of file
+    // Samples are fire and forget, no promise round trip per batch
+    @ReactMethod
+    public void appendSamples(ReadableArray records) {
+        if (records == null) {
+            return;
+        }
+
+        if (client != null) {
+            ArrayList<String> strings = new ArrayList<>(records.size());
+            for (int i = 0; i < records.size(); i++) {
+                String record = records.getString(i);
+                if (record != null) {
+                    strings.add(record);
+                }
+            }
+            // queued until the service process connects
+            client.appendSamples(strings);
+            return;
+        }
+
+        SampleSink sink = ForegroundService.getSampleSink(getReactApplicationContext());
+        for (int i = 0; i < records.size(); i++) {
+            String record = records.getString(i);
+            if (record != null) {
+                sink.append(record);
+            }
+        }
+    }
+
+    // Returns one page of sealed segments with their records, see ForegroundService.drainSamples.
+    // Segments are kept until commitSamples is called with their names.
+    @ReactMethod
+    public void drainSamples(ReadableMap options, final Promise promise) {
+        int maxSegments = options != null && options.hasKey("maxSegments")
+            ? options.getInt("maxSegments") : ForegroundService.DRAIN_MAX_SEGMENTS;
+        int maxRecords = options != null && options.hasKey("maxRecords")
+            ? options.getInt("maxRecords") : ForegroundService.DRAIN_MAX_RECORDS;
+        boolean includeActive = options != null && options.hasKey("includeActive")
+            && options.getBoolean("includeActive");
+
+        if (client != null) {
+            Bundle data = new Bundle();
+            data.putInt("maxSegments", maxSegments);
+            data.putInt("maxRecords", maxRecords);
+            data.putBoolean("includeActive", includeActive);
+            client.request(Constants.MSG_DRAIN_SAMPLES, data, new ServiceClient.Callback() {
+                @Override
+                public void onReply(Bundle reply) {
+                    if (reply == null) {
+                        promise.reject(ERROR_SERVICE_ERROR, "Failed to drain samples: service is not running");
+                        return;
+                    }
+                    promise.resolve(toSegments(reply.<Bundle>getParcelableArrayList("segments")));
+                }
+            });
+            return;
+        }
+
+        try{
+            SampleSink sink = ForegroundService.getSampleSink(getReactApplicationContext());
+            promise.resolve(toSegments(ForegroundService.drainSamples(sink, maxSegments, maxRecords, includeActive)));
+        }
+        catch(Exception e){
+            promise.reject(ERROR_SERVICE_ERROR, "Failed to drain samples: " + e.getMessage());
+        }
+    }
+
+    private static WritableArray toSegments(List<Bundle> segments) {
+        WritableArray result = Arguments.createArray();
+        if (segments == null) {
+            return result;
+        }
+        for (Bundle segment : segments) {
+            WritableArray records = Arguments.createArray();
+            List<String> strings = segment.getStringArrayList("records");
+            if (strings != null) {
+                for (String record : strings) {
+                    records.pushString(record);
+                }
+            }
+
+            WritableMap map = Arguments.createMap();
+            map.putString("segment", segment.getString("segment"));
+            map.putArray("records", records);
+            result.pushMap(map);
+        }
+        return result;
+    }
+
+    @ReactMethod
+    public void commitSamples(ReadableArray segments, final Promise promise) {
+        if (segments == null) {
+            promise.reject(ERROR_INVALID_CONFIG, "segments are required");
+            return;
+        }
+
+        if (client != null) {
+            ArrayList<String> names = new ArrayList<>(segments.size());
+            for (int i = 0; i < segments.size(); i++) {
+                names.add(segments.getString(i));
+            }
+            Bundle data = new Bundle();
+            data.putStringArrayList("segments", names);
+            client.request(Constants.MSG_COMMIT_SAMPLES, data, new ServiceClient.Callback() {
+                @Override
+                public void onReply(Bundle reply) {
+                    if (reply == null) {
+                        promise.reject(ERROR_SERVICE_ERROR, "Failed to commit samples: service is not running");
+                        return;
+                    }
+                    promise.resolve(reply.getInt("deleted"));
+                }
+            });
+            return;
+        }
+
+        SampleSink sink = ForegroundService.getSampleSink(getReactApplicationContext());
+        int deleted = 0;
+        for (int i = 0; i < segments.size(); i++) {
+            if (sink.deleteSegment(segments.getString(i))) {
+                deleted += 1;
+            }
+        }
+        promise.resolve(deleted);
+    }
+
+    @ReactMethod
+    public void getSampleStats(final Promise promise) {
+        if (client != null) {
+            client.request(Constants.MSG_GET_SAMPLE_STATS, null, new ServiceClient.Callback() {
+                @Override
+                public void onReply(Bundle reply) {
+                    if (reply == null) {
+                        promise.reject(ERROR_SERVICE_ERROR, "Failed to get sample stats: service is not running");
+                        return;
+                    }
+                    promise.resolve(Arguments.fromBundle(reply));
+                }
+            });
+            return;
+        }
+
+        SampleSink sink = ForegroundService.getSampleSink(getReactApplicationContext());
+        promise.resolve(Arguments.fromBundle(ForegroundService.getSampleStats(sink)));
+    }
+
+    // JS task schedules are kept in the native snapshot so they survive process death
+    @ReactMethod
+    public void syncTasks(ReadableArray tasks) {
+        if (tasks == null) {
+            return;
+        }
+
+        List<StateSnapshot.TaskSchedule> schedules = new ArrayList<>(tasks.size());
+        for (int i = 0; i < tasks.size(); i++) {
+            ReadableMap task = tasks.getMap(i);
+            if (task == null || !task.hasKey("taskId")) {
+                continue;
+            }
+            schedules.add(new StateSnapshot.TaskSchedule(
+                task.getString("taskId"),
+                task.hasKey("delay") ? (long)task.getDouble("delay") : 0,
+                task.hasKey("onLoop") && task.getBoolean("onLoop"),
+                task.hasKey("anchor") ? (long)task.getDouble("anchor") : ServiceClock.currentTimeMillis()
+            ));
+        }
+        if (client != null) {
+            reportTaskCount(schedules);
+            return;
+        }
+
+        StateSnapshot.getInstance(getReactApplicationContext()).setTasks(schedules);
+
+        reportTaskCount(schedules.size());
+    }
+
+    // Separate process mode: the service process owns the snapshot, so the schedules go along
+    // with the task count, over the binding. While the service is not running they wait for it
+    // to connect, the service process is only started for them to bring back a service that
+    // stopped itself while idle.
+    private void reportTaskCount(List<StateSnapshot.TaskSchedule> schedules) {
+        ArrayList<Bundle> bundles = StateSnapshot.toBundles(schedules);
+        Bundle report = new Bundle();
+        report.putInt(TASK_COUNT, schedules.size());
+        report.putParcelableArrayList(TASK_SCHEDULES, bundles);
+        if (client.setTasks(report) || !client.isIdleStopped() || schedules.isEmpty()) {
+            return;
+        }
+
+        Intent intent = new Intent(getReactApplicationContext(), ForegroundService.class);
+        intent.setAction(Constants.ACTION_TASK_ACTIVITY);
+        intent.putExtra(TASK_COUNT, schedules.size());
+        intent.putParcelableArrayListExtra(TASK_SCHEDULES, bundles);
+        restartIdleService(intent);
+    }
+
+    // Lets the service idle policy know how much work is registered. Not sent when there is no
+    // service to tell, unless it stopped itself for being idle and has to come back.
+    private void reportTaskCount(int count) {
+        boolean restart = ForegroundService.getInstance() == null;
+        if (restart && !(ForegroundService.isIdleStopped() && count > 0)) {
+            return;
+        }
+
+        Intent intent = new Intent(getReactApplicationContext(), ForegroundService.class);
+        intent.setAction(Constants.ACTION_TASK_ACTIVITY);
+        intent.putExtra(TASK_COUNT, count);
+        if (restart) {
+            restartIdleService(intent);
+            return;
+        }
+
+        try{
+            getReactApplicationContext().startService(intent);
+        }
+        catch(IllegalStateException e){
+            Log.e("ForegroundService", "Failed to report task count: " + e.getMessage());
+        }
+    }
+
+    // Brings back a service that stopped itself while idle. From the background this needs
+    // startForegroundService, and Android 12+ still refuses it unless the app may start a
+    // foreground service at that moment. A refusal is reported to JS as an idle event.
+    private boolean restartIdleService(Intent intent) {
+        intent.putExtra(FOREGROUND_REQUIRED, true);
+        try{
+            ContextCompat.startForegroundService(getReactApplicationContext(), intent);
+            return true;
+        }
+        catch(IllegalStateException e){
+            Log.e("ForegroundService", "Failed to restart idle service: " + e.getMessage());
+
+            EventBatcher events = EventBatcher.getInstance();
+            if (events.wants(EventBatcher.TYPE_IDLE)) {
+                Bundle event = new Bundle();
+                event.putBoolean("idle", true);
+                event.putBoolean("stopped", true);
+                event.putBoolean("restartFailed", true);
+                events.emit(EventBatcher.TYPE_IDLE, event);
+            }
+            return false;
+        }
+    }
+
+    @ReactMethod
+    public void getMetrics(final Promise promise) {
+        final String processName = getReactApplicationContext().getApplicationInfo().processName;
+
+        if (client != null) {
+            client.request(Constants.MSG_GET_METRICS, null, new ServiceClient.Callback() {
+                @Override
+                public void onReply(Bundle reply) {
+                    // the reply of a failed request is empty
+                    Bundle metrics = reply != null ? reply.getBundle("metrics") : null;
+                    if (metrics == null) {
+                        metrics = ServiceMetrics.getInstance().toBundle();
+                    }
+                    // headless tasks run in this process
+                    ServiceMetrics.getInstance().putHeadlessTasks(metrics);
+
+                    WritableMap result = Arguments.fromBundle(metrics);
+                    result.putMap("events", Arguments.fromBundle(EventBatcher.getInstance().getStats()));
+
+                    List<Bundle> processes = new ArrayList<>();
+                    processes.add(ServiceMetrics.getProcessMemory(processName));
+                    if (reply != null && reply.containsKey("metrics")) {
+                        result.putMap("serviceEvents", Arguments.fromBundle(reply.getBundle("events")));
+                        result.putMap("power", Arguments.fromBundle(reply.getBundle("power")));
+                        processes.add(reply.getBundle("memory"));
+                    }
+                    result.putArray("processes", toArray(processes));
+                    promise.resolve(result);
+                }
+            });
+            return;
+        }
+
+        WritableMap metrics = Arguments.fromBundle(ServiceMetrics.getInstance().toBundle());
+        metrics.putMap("events", Arguments.fromBundle(EventBatcher.getInstance().getStats()));
+        ForegroundService service = ForegroundService.getInstance();
+        if (service != null) {
+            metrics.putMap("power", Arguments.fromBundle(service.getPowerState()));
+        }
+
+        List<Bundle> processes = new ArrayList<>();
+        processes.add(ServiceMetrics.getProcessMemory(processName));
+        metrics.putArray("processes", toArray(processes));
+        promise.resolve(metrics);
+    }
+
+    // Starts batched event delivery, only the high rate event types listed are queued
+    @ReactMethod
+    public void setEventDelivery(ReadableArray types, double interval) {
+        Set<String> wanted = new HashSet<>();
+        if (types != null) {
+            for (int i = 0; i < types.size(); i++) {
+                wanted.add(types.getString(i));
+            }
+        }
+        EventBatcher.getInstance().configure(reactContext, wanted, (long)interval);
+
+        if (client != null) {
+            Bundle delivery = new Bundle();
+            delivery.putStringArrayList("types", new ArrayList<>(wanted));
+            delivery.putDouble("interval", interval);
+            client.setEventDelivery(delivery);
+        }
+    }
+
+    @ReactMethod
+    public void getRestoredTasks(Promise promise) {
+        long now = ServiceClock.currentTimeMillis();
+
+        WritableArray result = Arguments.createArray();
+        for (StateSnapshot.TaskSchedule task : StateSnapshot.getInstance(getReactApplicationContext()).getTasks()) {
+            WritableMap map = Arguments.createMap();
+            map.putString("taskId", task.taskId);
+            map.putDouble("delay", task.delay);
+            map.putBoolean("onLoop", task.onLoop);
+            map.putDouble("anchor", task.anchor);
+            map.putDouble("nextExecutionTime", task.nextDeadline(now));
+            result.pushMap(map);
+        }
+        promise.resolve(result);
+    }
+
+}
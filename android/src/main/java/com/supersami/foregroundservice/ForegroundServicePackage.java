@@ -13,6 +13,11 @@ import com.facebook.react.bridge.JavaScriptModule;
 public class ForegroundServicePackage implements ReactPackage {
     @Override
     public List<NativeModule> createNativeModules(ReactApplicationContext reactContext) {
+        // in separate process mode notifications are built in the service process, which
+        // prewarms itself
+        if (!ServiceClient.isRemote(reactContext)) {
+            NotificationHelper.prewarm(reactContext.getApplicationContext());
+        }
         return Arrays.<NativeModule>asList(new ForegroundServiceModule(reactContext));
     }
 
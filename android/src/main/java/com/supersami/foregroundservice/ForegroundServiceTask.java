@@ -5,7 +5,9 @@ import android.app.Service;
 import android.content.Intent;
 import android.os.Bundle;
 import android.os.IBinder;
+import android.os.Process;
 import android.util.Log;
+import android.util.SparseLongArray;
 
 import com.facebook.react.HeadlessJsTaskService;
 import com.facebook.react.bridge.Arguments;
@@ -19,6 +21,10 @@ import static com.supersami.foregroundservice.Constants.NOTIFICATION_CONFIG;
 
 public class ForegroundServiceTask extends HeadlessJsTaskService {
 
+    // Neither the config nor its data map can be pooled, the map is consumed when it is passed
+    // to JS. Loop ticks keep them small instead: their intent only holds taskName, sessionId,
+    // restored and the profile fields the JS runner reads (profile, loopScale and
+    // pauseLowPriority), see ForegroundService.buildTickIntent.
     @Nullable
     protected HeadlessJsTaskConfig getTaskConfig(Intent intent) {
         Bundle extras = intent.getExtras();
@@ -32,4 +38,44 @@ public class ForegroundServiceTask extends HeadlessJsTaskService {
         }
         return null;
     }
+
+    // Wall and process CPU time of each headless task, reported with taskFinished. Start and finish
+    // are called on the UI thread while JS runs on its own, so no thread clock covers the task:
+    // the CPU time is the process delta over the task lifetime and overlaps with other tasks.
+    private final SparseLongArray startTimes = new SparseLongArray();
+    private final SparseLongArray startCpuTimes = new SparseLongArray();
+
+    @Override
+    public void onHeadlessJsTaskStart(int taskId) {
+        super.onHeadlessJsTaskStart(taskId);
+        synchronized (startTimes) {
+            startTimes.put(taskId, ServiceClock.uptimeMillis());
+            startCpuTimes.put(taskId, Process.getElapsedCpuTime());
+        }
+        ServiceMetrics.getInstance().onHeadlessTaskStart();
+    }
+
+    @Override
+    public void onHeadlessJsTaskFinish(int taskId) {
+        long wallTime;
+        long processCpuTime;
+        synchronized (startTimes) {
+            wallTime = ServiceClock.uptimeMillis() - startTimes.get(taskId, ServiceClock.uptimeMillis());
+            processCpuTime = Process.getElapsedCpuTime() - startCpuTimes.get(taskId, Process.getElapsedCpuTime());
+            startTimes.delete(taskId);
+            startCpuTimes.delete(taskId);
+        }
+        ServiceMetrics.getInstance().onHeadlessTaskFinish(wallTime);
+
+        EventBatcher events = EventBatcher.getInstance();
+        if (events.wants(EventBatcher.TYPE_TASK_FINISHED)) {
+            Bundle event = new Bundle();
+            event.putInt("taskId", taskId);
+            event.putDouble("wallTime", wallTime);
+            event.putDouble("processCpuTime", processCpuTime);
+            events.emit(EventBatcher.TYPE_TASK_FINISHED, event);
+        }
+
+        super.onHeadlessJsTaskFinish(taskId);
+    }
 }
@@ -2,14 +2,12 @@ package com.supersami.foregroundservice;
 
 import android.app.Activity;
 import android.content.Intent;
-import android.util.Log;
 
 import com.facebook.react.ReactActivity;
 import com.facebook.react.ReactActivityDelegate;
 import com.facebook.react.ReactRootView;
 import com.facebook.react.bridge.Arguments;
 import com.facebook.react.bridge.WritableMap;
-import com.facebook.react.modules.core.DeviceEventManagerModule;
 
 public class MainActivity extends ReactActivity {
 
@@ -46,12 +44,7 @@ public class MainActivity extends ReactActivity {
     if (btn2 != null) {
         map.putString("button", btn);
     }
-    try {
-        getReactInstanceManager().getCurrentReactContext()
-        .getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class)
-        .emit("notificationClickHandle", map);
-    } catch (Exception  e) {
-    Log.e("SuperLog", "Caught Exception: " + e.getMessage());
-    }
+    // batched so a click that launched the app is delivered once JS listens
+    EventBatcher.getInstance().emit(EventBatcher.TYPE_NOTIFICATION_CLICK, map);
   }
 }
\ No newline at end of file
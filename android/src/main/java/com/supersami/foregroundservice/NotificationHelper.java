@@ -15,6 +15,10 @@ import androidx.core.app.NotificationCompat;
 import android.util.Log;
 import com.facebook.react.R;
 
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 
 // partially took ideas from: https://github.com/zo0r/react-native-push-notification/blob/master/android/src/main/java/com/dieam/reactnativepushnotification/modules/RNPushNotificationHelper.java
 
@@ -30,6 +34,10 @@ class NotificationHelper {
     private Context context;
     private NotificationConfig config;
 
+    // decoding the large icon on every update is the most expensive part of a build
+    private int largeIconCacheId = 0;
+    private Bitmap largeIconCache = null;
+
     public static synchronized NotificationHelper getInstance(Context context) {
         if (instance == null) {
             instance = new NotificationHelper(context);
@@ -37,6 +45,18 @@ class NotificationHelper {
         return instance;
     }
 
+    // Drops the singleton with its cached bitmap and pending intents, a new one is built on demand
+    public static synchronized void release() {
+        if (instance != null) {
+            instance.largeIconCache = null;
+            instance.largeIconCacheId = 0;
+            instance.pendingBtnIntent = null;
+            instance.pendingBtn2Intent = null;
+            instance = null;
+            ServiceMetrics.getInstance().onCacheRelease();
+        }
+    }
+
     private NotificationHelper(Context context) {
         mNotificationManager = (NotificationManager)context.getSystemService(Context.NOTIFICATION_SERVICE);
         this.context = context;
@@ -44,7 +64,53 @@ class NotificationHelper {
     }
 
 
-    Notification buildNotification(Context context, Bundle bundle) {
+    // Loads what every build needs (manifest metadata, launch activity, default icons and the
+    // channel of the default start() options) ahead of the first start, off the main thread.
+    static void prewarm(final Context context) {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    NotificationHelper helper = getInstance(context);
+                    helper.getMainActivityClass(context);
+                    helper.getResourceIdForResourceName(context, "ic_notification");
+                    helper.getResourceIdForResourceName(context, "ic_launcher");
+
+                    Bundle defaults = new Bundle();
+                    defaults.putString("importance", "max");
+                    helper.checkOrCreateChannel(helper.mNotificationManager, defaults);
+                }
+                catch (Exception e) {
+                    Log.e("NotificationHelper", "Failed to prewarm: " + e.getMessage());
+                }
+            }
+        }, "ForegroundServicePrewarm").start();
+    }
+
+    // Bare notification with only a title, text and icon, cheap enough to satisfy the
+    // startForeground deadline right away while the full notification is built in the background
+    synchronized Notification buildPlaceholder(Context context, Bundle bundle) {
+        String iconName = bundle.getString("icon");
+        if (iconName == null) {
+            iconName = "ic_launcher";
+        }
+
+        int icon = getResourceIdForResourceName(context, iconName);
+        if (icon == 0) {
+            // a notification without a valid small icon is rejected
+            icon = android.R.drawable.ic_dialog_info;
+        }
+
+        return new NotificationCompat.Builder(context, checkOrCreateChannel(mNotificationManager, bundle))
+            .setContentTitle(bundle.getString("title"))
+            .setContentText(bundle.getString("message"))
+            .setSmallIcon(icon)
+            .setOngoing(true)
+            .setOnlyAlertOnce(true)
+            .build();
+    }
+
+    synchronized Notification buildNotification(Context context, Bundle bundle) {
         if (bundle == null) {
             Log.e("NotificationHelper", "buildNotification: invalid config");
             return null;
@@ -129,9 +195,9 @@ class NotificationHelper {
             }
         }
 
-        checkOrCreateChannel(mNotificationManager, bundle);
+        String channelId = checkOrCreateChannel(mNotificationManager, bundle);
 
-        NotificationCompat.Builder notificationBuilder = new NotificationCompat.Builder(context, NOTIFICATION_CHANNEL_ID)
+        NotificationCompat.Builder notificationBuilder = new NotificationCompat.Builder(context, channelId)
             .setContentTitle(title)
             .setVisibility(visibility)
             .setPriority(priority)
@@ -176,10 +242,9 @@ class NotificationHelper {
         }
 
         int largeIconResId = getResourceIdForResourceName(context, largeIconName);
-        Bitmap largeIconBitmap = BitmapFactory.decodeResource(context.getResources(), largeIconResId);
 
         if (largeIconResId != 0) {
-            notificationBuilder.setLargeIcon(largeIconBitmap);
+            notificationBuilder.setLargeIcon(getLargeIcon(context, largeIconResId));
         }
 
         String numberString = bundle.getString("number");
@@ -194,16 +259,107 @@ class NotificationHelper {
         if(progress){
             double max = bundle.getDouble("progressBarMax");
             double curr = bundle.getDouble("progressBarCurr");
-            notificationBuilder.setProgress((int)max, (int)curr,false);
+            notificationBuilder.setProgress((int)max, (int)curr, bundle.getBoolean("progressBarIndeterminate", false));
+        }
+
+        // SystemUI keeps a chronometer and an indeterminate bar moving on its own, a live timer
+        // needs no further notification updates
+        if (bundle.getBoolean("chronometer", false)) {
+            notificationBuilder.setUsesChronometer(true);
+            notificationBuilder.setChronometerCountDown(bundle.getBoolean("chronometerCountDown", false));
+            notificationBuilder.setShowWhen(true);
+        }
+        if (bundle.containsKey("when")) {
+            notificationBuilder.setWhen((long)bundle.getDouble("when"));
+        }
+        if (bundle.containsKey("showWhen")) {
+            notificationBuilder.setShowWhen(bundle.getBoolean("showWhen"));
         }
 
         notificationBuilder.setOnlyAlertOnce(true);
 
+        String group = bundle.getString("group");
+        if (group != null) {
+            notificationBuilder.setGroup(group);
+        }
+
 
         return notificationBuilder.build();
     }
 
+    // Whether two notification configs would build the same notification
+    static boolean sameConfig(Bundle a, Bundle b) {
+        if (a == null || b == null) {
+            return a == b;
+        }
+        if (a.size() != b.size()) {
+            return false;
+        }
+        for (String key : a.keySet()) {
+            if (!b.containsKey(key)) {
+                return false;
+            }
+            Object va = a.get(key);
+            Object vb = b.get(key);
+            if (va instanceof Bundle && vb instanceof Bundle) {
+                if (!sameConfig((Bundle) va, (Bundle) vb)) {
+                    return false;
+                }
+            } else if (va == null ? vb != null : !va.equals(vb)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Summary shown by SystemUI in place of the grouped notifications, lists their titles
+    synchronized Notification buildGroupSummary(Context context, String group, List<Bundle> children) {
+        if (children.isEmpty()) {
+            return null;
+        }
+        Bundle first = children.get(0);
+
+        NotificationCompat.InboxStyle style = new NotificationCompat.InboxStyle();
+        for (Bundle child : children) {
+            style.addLine(child.getString("title"));
+        }
+
+        String iconName = first.getString("icon");
+        if (iconName == null) {
+            iconName = "ic_launcher";
+        }
+
+        NotificationCompat.Builder builder = new NotificationCompat.Builder(context, checkOrCreateChannel(mNotificationManager, first))
+            .setContentTitle(first.getString("groupTitle", group))
+            .setSmallIcon(getResourceIdForResourceName(context, iconName))
+            .setStyle(style)
+            .setGroup(group)
+            .setGroupSummary(true)
+            .setGroupAlertBehavior(NotificationCompat.GROUP_ALERT_CHILDREN)
+            .setOnlyAlertOnce(true);
+
+        String color = first.getString("color");
+        if (color != null) {
+            builder.setColor(Color.parseColor(color));
+        }
+        return builder.build();
+    }
+
+    private Bitmap getLargeIcon(Context context, int resourceId) {
+        if (largeIconCache == null || largeIconCacheId != resourceId) {
+            largeIconCache = BitmapFactory.decodeResource(context.getResources(), resourceId);
+            largeIconCacheId = resourceId;
+        }
+        return largeIconCache;
+    }
+
+    // the launch activity can't change while the app runs, it is only looked up once
+    private static Class mainActivityClass = null;
+
     private Class getMainActivityClass(Context context) {
+        if (mainActivityClass != null) {
+            return mainActivityClass;
+        }
         String packageName = context.getPackageName();
         Intent launchIntent = context.getPackageManager().getLaunchIntentForPackage(packageName);
         if (launchIntent == null || launchIntent.getComponent() == null) {
@@ -211,32 +367,96 @@ class NotificationHelper {
             return null;
         }
         try {
-            return Class.forName(launchIntent.getComponent().getClassName());
+            mainActivityClass = Class.forName(launchIntent.getComponent().getClassName());
+            return mainActivityClass;
         } catch (ClassNotFoundException e) {
             Log.e("NotificationHelper", "Failed to get main activity class");
             return null;
         }
     }
 
+    // getIdentifier is a name lookup through the resource tables, cache what was resolved
+    private final Map<String, Integer> resourceIds = new HashMap<>();
+
     private int getResourceIdForResourceName(Context context, String resourceName) {
+        synchronized (resourceIds) {
+            Integer cached = resourceIds.get(resourceName);
+            if (cached != null) {
+                return cached;
+            }
+        }
         int resourceId = context.getResources().getIdentifier(resourceName, "drawable", context.getPackageName());
         if (resourceId == 0) {
             resourceId = context.getResources().getIdentifier(resourceName, "mipmap", context.getPackageName());
         }
+        synchronized (resourceIds) {
+            resourceIds.put(resourceName, resourceId);
+        }
         return resourceId;
     }
 
-    private static boolean channelCreated = false;
-    private void checkOrCreateChannel(NotificationManager manager, Bundle bundle) {
+    // Channels created so far, keyed by channel id and settings. Channel settings can't be changed
+    // by the app once created, so a bundle asking for different settings on an existing channel
+    // gets its own channel instead of silently inheriting the first one.
+    private static final Map<String, String> channelRegistry = new HashMap<>();
+
+    String checkOrCreateChannel(NotificationManager manager, Bundle bundle) {
+        String channelId = bundle.getString("channelId", NOTIFICATION_CHANNEL_ID);
+
         if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O)
-            return;
-        if (channelCreated)
-            return;
+            return channelId;
         if (manager == null)
-            return;
+            return channelId;
 
-        int importance = NotificationManager.IMPORTANCE_HIGH;
         final String importanceString = bundle.getString("importance");
+        int importance = getChannelImportance(importanceString);
+        boolean vibration = bundle.getBoolean("vibration");
+
+        String key = channelId + "|" + importance + "|" + vibration;
+        synchronized (channelRegistry) {
+            String registered = channelRegistry.get(key);
+            if (registered != null) {
+                return registered;
+            }
+
+            String resolvedId = channelId;
+            NotificationChannel existing = manager.getNotificationChannel(channelId);
+            if (existing != null && !matchesChannel(existing, importance, vibration)) {
+                resolvedId = channelId + "." + (importanceString != null ? importanceString.toLowerCase() : "high")
+                    + (vibration ? ".vibration" : "");
+            }
+
+            if (resolvedId.equals(channelId) && existing != null) {
+                channelRegistry.put(key, resolvedId);
+                return resolvedId;
+            }
+
+            String channelName = bundle.getString("channelName");
+            String channelDescription = bundle.getString("channelDescription");
+
+            NotificationChannel channel = new NotificationChannel(resolvedId,
+                channelName != null ? channelName : this.config.getChannelName(), importance);
+            channel.setDescription(channelDescription != null ? channelDescription : this.config.getChannelDescription());
+            channel.enableLights(true);
+            channel.enableVibration(vibration);
+            channel.setShowBadge(true);
+
+            manager.createNotificationChannel(channel);
+            channelRegistry.put(key, resolvedId);
+            return resolvedId;
+        }
+    }
+
+    // Importance the user picked in the system settings always wins
+    private boolean matchesChannel(NotificationChannel channel, int importance, boolean vibration) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q && channel.hasUserSetImportance()) {
+            return true;
+        }
+        return channel.getImportance() == importance && channel.shouldVibrate() == vibration;
+    }
+
+    private int getChannelImportance(String importanceString) {
+        int importance = NotificationManager.IMPORTANCE_HIGH;
 
         if (importanceString != null) {
             switch(importanceString.toLowerCase()) {
@@ -265,13 +485,6 @@ class NotificationHelper {
                     importance = NotificationManager.IMPORTANCE_HIGH;
             }
         }
-        NotificationChannel channel = new NotificationChannel(NOTIFICATION_CHANNEL_ID, this.config.getChannelName(), importance);
-        channel.setDescription(this.config.getChannelDescription());
-        channel.enableLights(true);
-        channel.enableVibration(bundle.getBoolean("vibration"));
-        channel.setShowBadge(true);
-
-        manager.createNotificationChannel(channel);
-        channelCreated = true;
+        return importance;
     }
 }
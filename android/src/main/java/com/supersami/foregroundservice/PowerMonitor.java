@@ -0,0 +1,157 @@
+package com.supersami.foregroundservice;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.PowerManager;
+import android.util.Log;
+
+
+// Watches battery saver, doze, the thermal status and the charger, and tells the service which
+// execution profile applies whenever one of them changes. Thermal throttling wins over doze,
+// doze over battery saver and battery saver over charging.
+
+class PowerMonitor {
+
+    interface Listener {
+        void onProfileChanged(String profile);
+    }
+
+    // from this thermal status on the device is considered throttled
+    private static final int THERMAL_THRESHOLD = PowerManager.THERMAL_STATUS_MODERATE;
+
+    private final Context context;
+    private final Listener listener;
+    private final PowerManager powerManager;
+
+    private boolean powerSave = false;
+    private boolean deviceIdle = false;
+    private boolean charging = false;
+    private int batteryLevel = -1;
+    private int thermalStatus = 0;
+    private String profile = ExecutionProfile.NORMAL;
+    private boolean started = false;
+
+    private final BroadcastReceiver receiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (Intent.ACTION_BATTERY_CHANGED.equals(intent.getAction())) {
+                readBattery(intent);
+            }
+            update();
+        }
+    };
+
+    private PowerManager.OnThermalStatusChangedListener thermalListener = null;
+
+    PowerMonitor(Context context, Listener listener) {
+        this.context = context;
+        this.listener = listener;
+        this.powerManager = (PowerManager)context.getSystemService(Context.POWER_SERVICE);
+    }
+
+    void start() {
+        if (started) {
+            return;
+        }
+        started = true;
+
+        IntentFilter filter = new IntentFilter(PowerManager.ACTION_POWER_SAVE_MODE_CHANGED);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            filter.addAction(PowerManager.ACTION_DEVICE_IDLE_MODE_CHANGED);
+        }
+        filter.addAction(Intent.ACTION_BATTERY_CHANGED);
+        // battery changed is sticky, the current state comes back right away
+        Intent battery = context.registerReceiver(receiver, filter);
+        if (battery != null) {
+            readBattery(battery);
+        }
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q && powerManager != null) {
+            thermalListener = new PowerManager.OnThermalStatusChangedListener() {
+                @Override
+                public void onThermalStatusChanged(int status) {
+                    update();
+                }
+            };
+            powerManager.addThermalStatusListener(thermalListener);
+        }
+        update();
+    }
+
+    void stop() {
+        if (!started) {
+            return;
+        }
+        started = false;
+
+        try {
+            context.unregisterReceiver(receiver);
+        }
+        catch (IllegalArgumentException e) {
+            Log.e("ForegroundService", "Power receiver was not registered: " + e.getMessage());
+        }
+        if (thermalListener != null) {
+            powerManager.removeThermalStatusListener(thermalListener);
+            thermalListener = null;
+        }
+    }
+
+    String getProfile() {
+        return profile;
+    }
+
+    Bundle toBundle() {
+        Bundle bundle = new Bundle();
+        bundle.putString("profile", profile);
+        bundle.putBoolean("powerSave", powerSave);
+        bundle.putBoolean("deviceIdle", deviceIdle);
+        bundle.putBoolean("charging", charging);
+        bundle.putInt("batteryLevel", batteryLevel);
+        bundle.putInt("thermalStatus", thermalStatus);
+        return bundle;
+    }
+
+    private void readBattery(Intent intent) {
+        int status = intent.getIntExtra(BatteryManager.EXTRA_STATUS, -1);
+        charging = status == BatteryManager.BATTERY_STATUS_CHARGING || status == BatteryManager.BATTERY_STATUS_FULL;
+
+        int level = intent.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+        int scale = intent.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+        batteryLevel = level >= 0 && scale > 0 ? level * 100 / scale : -1;
+    }
+
+    private void update() {
+        if (powerManager != null) {
+            powerSave = powerManager.isPowerSaveMode();
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+                deviceIdle = powerManager.isDeviceIdleMode();
+            }
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+                thermalStatus = powerManager.getCurrentThermalStatus();
+            }
+        }
+
+        String next;
+        if (thermalStatus >= THERMAL_THRESHOLD) {
+            next = ExecutionProfile.THERMAL;
+        } else if (deviceIdle) {
+            next = ExecutionProfile.DEVICE_IDLE;
+        } else if (powerSave) {
+            next = ExecutionProfile.POWER_SAVE;
+        } else if (charging) {
+            next = ExecutionProfile.CHARGING;
+        } else {
+            next = ExecutionProfile.NORMAL;
+        }
+
+        if (!next.equals(profile)) {
+            profile = next;
+            listener.onProfileChanged(next);
+        }
+    }
+}
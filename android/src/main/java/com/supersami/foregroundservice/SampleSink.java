@@ -0,0 +1,498 @@
+package com.supersami.foregroundservice;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+
+// Append-only record store for samples produced by looped tasks (locations, sensor readings...)
+// Records are written into a memory mapped segment file, so an append is just a copy into the
+// page cache and survives process death. fsync (force) is batched and segments are rotated by size.
+// Records not followed by enough appends to force them are forced by a timed flush, at most
+// flushInterval after they were written.
+//
+// Segment layout: [int magic][int version][int end of written data][4 bytes reserved] followed
+// by records of [int length][length bytes]. A zero length marks the end of the written data, the
+// payload is always written before its length so a torn write is never seen by the reader.
+
+public class SampleSink {
+
+    private static final String TAG = "SampleSink";
+
+    private static final String DIRECTORY = "foregroundservice_samples";
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".dat";
+
+    private static final int MAGIC = 0x46475353; // FGSS
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int END_OFFSET = 8;
+    private static final int LENGTH_SIZE = 4;
+
+    static final int DEFAULT_SEGMENT_SIZE = 1024 * 1024;
+    static final int DEFAULT_MAX_SEGMENTS = 64;
+    static final int DEFAULT_FLUSH_RECORDS = 64;
+    static final long DEFAULT_FLUSH_INTERVAL = 1000;
+    // a drain leaves the active segment open until it holds this much, see rotate(int)
+    static final int MIN_SEAL_BYTES = 64 * 1024;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File directory;
+    private final int segmentSize;
+    private final int maxSegments;
+    private final int flushRecords;
+    private final long flushInterval;
+
+    private RandomAccessFile activeFile;
+    private MappedByteBuffer active;
+    private int activeIndex = -1;
+    private int activeRecords = 0;
+
+    private int unflushedRecords = 0;
+    private long lastFlush = 0;
+    // timed flush of the records left when appends stop
+    private Handler flusher = null;
+    private boolean flushScheduled = false;
+    private final Runnable flushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    private long totalRecords = 0;
+    private long droppedRecords = 0;
+    private long droppedSegments = 0;
+    private long flushes = 0;
+    // written bytes of each sealed segment, read from their header the first time they are needed
+    private final Map<Integer, Long> sealedBytes = new HashMap<>();
+
+    public SampleSink(Context context) {
+        this(new File(context.getFilesDir(), DIRECTORY), DEFAULT_SEGMENT_SIZE, DEFAULT_MAX_SEGMENTS,
+            DEFAULT_FLUSH_RECORDS, DEFAULT_FLUSH_INTERVAL);
+    }
+
+    SampleSink(File directory, int segmentSize, int maxSegments, int flushRecords, long flushInterval) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxSegments = maxSegments;
+        this.flushRecords = flushRecords;
+        this.flushInterval = flushInterval;
+    }
+
+    /**
+     * Appends a raw record. Safe to call from native worker threads, no allocations are made
+     * unless the active segment needs to be rotated.
+     */
+    public synchronized boolean append(byte[] data, int offset, int length) {
+        if (length <= 0 || !ensureCapacity(length)) {
+            droppedRecords += 1;
+            return false;
+        }
+
+        int start = active.position();
+        active.position(start + LENGTH_SIZE);
+        active.put(data, offset, length);
+        active.putInt(start, length);
+        active.putInt(END_OFFSET, active.position());
+
+        onAppended();
+        return true;
+    }
+
+    /**
+     * Appends a string record encoded as UTF-8 straight into the mapped segment, without
+     * going through an intermediate byte array.
+     */
+    public synchronized boolean append(CharSequence record) {
+        int length = utf8Length(record);
+        if (length <= 0 || !ensureCapacity(length)) {
+            droppedRecords += 1;
+            return false;
+        }
+
+        int start = active.position();
+        active.position(start + LENGTH_SIZE);
+        writeUtf8(active, record);
+        active.putInt(start, length);
+        active.putInt(END_OFFSET, active.position());
+
+        onAppended();
+        return true;
+    }
+
+    /**
+     * Forces the written records of the active segment to disk.
+     */
+    public synchronized void flush() {
+        cancelTimedFlush();
+        if (active != null && unflushedRecords > 0) {
+            active.force();
+            flushes += 1;
+        }
+        unflushedRecords = 0;
+        lastFlush = ServiceClock.elapsedRealtime();
+    }
+
+    /**
+     * Seals the active segment so its records become available to drain. Noop if it is empty.
+     */
+    public synchronized void rotate() {
+        rotate(1);
+    }
+
+    /**
+     * Seals the active segment only once it holds at least minBytes, so frequent drains don't
+     * leave a trail of nearly empty segments. Returns true if a segment was sealed.
+     */
+    public synchronized boolean rotate(int minBytes) {
+        if (active != null && activeRecords > 0 && getActiveBytes() >= minBytes) {
+            closeActive();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Sealed segment names, oldest first. Call rotate() first to include the active records.
+     */
+    public synchronized List<String> getSealedSegments() {
+        List<String> result = new ArrayList<>();
+        for (int index : listSegmentIndexes()) {
+            if (index != activeIndex) {
+                result.add(segmentName(index));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Reads all records of a sealed segment. Returns an empty list if it does not exist or
+     * is not sealed.
+     */
+    public synchronized List<byte[]> readSegment(String name) {
+        List<byte[]> records = new ArrayList<>();
+        int index = parseIndex(name);
+        if (index < 0 || index == activeIndex) {
+            return records;
+        }
+
+        File file = new File(directory, segmentName(index));
+        if (!file.exists()) {
+            return records;
+        }
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            if (!validHeader(buffer)) {
+                Log.w(TAG, "Skipping invalid segment " + name);
+                return records;
+            }
+            buffer.position(HEADER_SIZE);
+            while (buffer.remaining() >= LENGTH_SIZE) {
+                int length = buffer.getInt();
+                if (length <= 0 || length > buffer.remaining()) {
+                    break;
+                }
+                byte[] record = new byte[length];
+                buffer.get(record);
+                records.add(record);
+            }
+        }
+        catch (IOException e) {
+            Log.e(TAG, "Failed to read segment " + name + ": " + e.getMessage());
+        }
+        return records;
+    }
+
+    public List<String> readSegmentStrings(String name) {
+        List<byte[]> records = readSegment(name);
+        List<String> result = new ArrayList<>(records.size());
+        for (byte[] record : records) {
+            result.add(new String(record, UTF_8));
+        }
+        return result;
+    }
+
+    /**
+     * Deletes a drained segment, usually once its records were uploaded.
+     */
+    public synchronized boolean deleteSegment(String name) {
+        int index = parseIndex(name);
+        if (index < 0 || index == activeIndex) {
+            return false;
+        }
+        sealedBytes.remove(index);
+        return new File(directory, segmentName(index)).delete();
+    }
+
+    public synchronized void close() {
+        cancelTimedFlush();
+        closeActive();
+    }
+
+    public synchronized long getTotalRecords() {
+        return totalRecords;
+    }
+
+    public synchronized long getDroppedRecords() {
+        return droppedRecords;
+    }
+
+    public synchronized long getDroppedSegments() {
+        return droppedSegments;
+    }
+
+    public synchronized long getFlushCount() {
+        return flushes;
+    }
+
+    /**
+     * Bytes written and not committed yet, segments are mapped at their full size so the file
+     * sizes would overstate it.
+     */
+    public synchronized long getPendingBytes() {
+        long bytes = 0;
+        for (int index : listSegmentIndexes()) {
+            bytes += index == activeIndex ? getActiveBytes() : getSealedBytes(index);
+        }
+        return bytes;
+    }
+
+    private long getActiveBytes() {
+        return active != null ? active.position() - HEADER_SIZE : 0;
+    }
+
+    private long getSealedBytes(int index) {
+        Long cached = sealedBytes.get(index);
+        if (cached != null) {
+            return cached;
+        }
+
+        long bytes = 0;
+        File file = new File(directory, segmentName(index));
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            if (raf.length() >= HEADER_SIZE && raf.readInt() == MAGIC && raf.readInt() == VERSION) {
+                int end = raf.readInt();
+                if (end >= HEADER_SIZE && end <= raf.length()) {
+                    bytes = end - HEADER_SIZE;
+                }
+            }
+        }
+        catch (IOException e) {
+            Log.e(TAG, "Failed to read segment " + file.getName() + ": " + e.getMessage());
+        }
+        sealedBytes.put(index, bytes);
+        return bytes;
+    }
+
+
+    private void onAppended() {
+        activeRecords += 1;
+        totalRecords += 1;
+        unflushedRecords += 1;
+
+        if (unflushedRecords >= flushRecords
+            || ServiceClock.elapsedRealtime() - lastFlush >= flushInterval) {
+            flush();
+        }
+        else if (!flushScheduled) {
+            getFlusher().postDelayed(flushRunnable, flushInterval);
+            flushScheduled = true;
+        }
+    }
+
+    private Handler getFlusher() {
+        if (flusher == null) {
+            HandlerThread thread = new HandlerThread("ForegroundServiceSamples");
+            thread.start();
+            flusher = new Handler(thread.getLooper());
+        }
+        return flusher;
+    }
+
+    private void cancelTimedFlush() {
+        if (flushScheduled) {
+            flusher.removeCallbacks(flushRunnable);
+            flushScheduled = false;
+        }
+    }
+
+    private boolean ensureCapacity(int length) {
+        if (length + LENGTH_SIZE > segmentSize - HEADER_SIZE - LENGTH_SIZE) {
+            Log.w(TAG, "Record of " + length + " bytes does not fit in a segment, dropping it.");
+            return false;
+        }
+
+        try {
+            if (active == null) {
+                openActive();
+            }
+            // keep room for the zero length terminator
+            if (active.remaining() < length + LENGTH_SIZE * 2) {
+                int next = activeIndex + 1;
+                closeActive();
+                openSegment(next);
+            }
+            return true;
+        }
+        catch (IOException e) {
+            Log.e(TAG, "Failed to open segment: " + e.getMessage());
+            closeActive();
+            return false;
+        }
+    }
+
+    // A new segment is started every time the sink is opened, segments left behind by a previous
+    // process are sealed as they are and remain readable up to their last complete record.
+    private void openActive() throws IOException {
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Unable to create " + directory);
+        }
+        int[] indexes = listSegmentIndexes();
+        openSegment(indexes.length == 0 ? 0 : indexes[indexes.length - 1] + 1);
+    }
+
+    private void openSegment(int index) throws IOException {
+        trimSegments();
+        File file = new File(directory, segmentName(index));
+        activeFile = new RandomAccessFile(file, "rw");
+        active = activeFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        activeIndex = index;
+        activeRecords = 0;
+
+        active.putInt(0, MAGIC);
+        active.putInt(4, VERSION);
+        active.putInt(END_OFFSET, HEADER_SIZE);
+        active.position(HEADER_SIZE);
+    }
+
+    private void closeActive() {
+        if (active != null) {
+            if (unflushedRecords > 0) {
+                active.force();
+                flushes += 1;
+            }
+            unflushedRecords = 0;
+            sealedBytes.put(activeIndex, getActiveBytes());
+        }
+        if (activeFile != null) {
+            try {
+                activeFile.close();
+            }
+            catch (IOException e) {
+                Log.e(TAG, "Failed to close segment: " + e.getMessage());
+            }
+        }
+        active = null;
+        activeFile = null;
+        activeIndex = -1;
+        activeRecords = 0;
+    }
+
+    // Bounds disk usage by dropping the oldest sealed segments when nobody drains them.
+    private void trimSegments() {
+        int[] indexes = listSegmentIndexes();
+        int excess = indexes.length - (maxSegments - 1);
+        for (int i = 0; i < excess; i++) {
+            if (indexes[i] != activeIndex && new File(directory, segmentName(indexes[i])).delete()) {
+                sealedBytes.remove(indexes[i]);
+                droppedSegments += 1;
+            }
+        }
+    }
+
+    private int[] listSegmentIndexes() {
+        String[] names = directory.list();
+        if (names == null) {
+            return new int[0];
+        }
+        int[] indexes = new int[names.length];
+        int count = 0;
+        for (String name : names) {
+            int index = parseIndex(name);
+            if (index >= 0) {
+                indexes[count++] = index;
+            }
+        }
+        indexes = Arrays.copyOf(indexes, count);
+        Arrays.sort(indexes);
+        return indexes;
+    }
+
+    private static boolean validHeader(MappedByteBuffer buffer) {
+        return buffer.limit() >= HEADER_SIZE && buffer.getInt(0) == MAGIC && buffer.getInt(4) == VERSION;
+    }
+
+    private static String segmentName(int index) {
+        return String.format(Locale.US, "%s%08d%s", SEGMENT_PREFIX, index, SEGMENT_SUFFIX);
+    }
+
+    private static int parseIndex(String name) {
+        if (name == null || !name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX)) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+        }
+        catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static int utf8Length(CharSequence s) {
+        int length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    private static void writeUtf8(MappedByteBuffer buffer, CharSequence s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                buffer.put((byte) c);
+            } else if (c < 0x800) {
+                buffer.put((byte) (0xc0 | (c >> 6)));
+                buffer.put((byte) (0x80 | (c & 0x3f)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                buffer.put((byte) (0xf0 | (cp >> 18)));
+                buffer.put((byte) (0x80 | ((cp >> 12) & 0x3f)));
+                buffer.put((byte) (0x80 | ((cp >> 6) & 0x3f)));
+                buffer.put((byte) (0x80 | (cp & 0x3f)));
+            } else {
+                // lone surrogates are encoded as is, same length as utf8Length accounts for
+                buffer.put((byte) (0xe0 | (c >> 12)));
+                buffer.put((byte) (0x80 | ((c >> 6) & 0x3f)));
+                buffer.put((byte) (0x80 | (c & 0x3f)));
+            }
+        }
+    }
+}
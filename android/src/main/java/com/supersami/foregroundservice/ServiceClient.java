@@ -0,0 +1,249 @@
+package com.supersami.foregroundservice;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.content.pm.PackageManager;
+import android.content.pm.ServiceInfo;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Messenger;
+import android.os.RemoteException;
+import android.util.Log;
+import android.util.SparseArray;
+
+import java.util.ArrayList;
+
+
+// UI process side of the separate process mode. When ForegroundService is declared with its own
+// android:process, the module can't reach the service instance, its metrics or its sample sink
+// directly, so it asks the service through a Messenger instead.
+// The binding never creates the service (no BIND_AUTO_CREATE), it connects whenever the service
+// is running and requests made while it is not get a null reply right away.
+
+class ServiceClient implements ServiceConnection {
+
+    interface Callback {
+        // reply is null when the service is not running
+        void onReply(Bundle reply);
+    }
+
+    private final Context context;
+
+    private final Handler handler = new Handler(Looper.getMainLooper()) {
+        @Override
+        public void handleMessage(Message msg) {
+            if (msg.what == Constants.MSG_IDLE_STOPPED) {
+                synchronized (ServiceClient.this) {
+                    idleStopped = true;
+                }
+                return;
+            }
+            if (msg.what == Constants.MSG_EVENTS) {
+                ArrayList<Bundle> events = msg.getData().getParcelableArrayList(Constants.MSG_EVENTS_KEY);
+                if (events != null) {
+                    EventBatcher.getInstance().deliver(events);
+                }
+                return;
+            }
+
+            ServiceClient.Callback callback;
+            synchronized (ServiceClient.this) {
+                callback = pending.get(msg.arg1);
+                pending.remove(msg.arg1);
+            }
+            if (callback != null) {
+                callback.onReply(msg.getData());
+            }
+        }
+    };
+    private final Messenger replyTo = new Messenger(handler);
+
+    private final SparseArray<Callback> pending = new SparseArray<>();
+    private int nextRequest = 1;
+    private Messenger service = null;
+    private boolean bound = false;
+    // sent again whenever the service (re)connects
+    private Bundle eventDelivery = null;
+    private Bundle tasks = null;
+    // set when the service stopped itself while idle, until it connects again
+    private boolean idleStopped = false;
+    // samples appended while the service is not connected, sent in order once it connects. The
+    // oldest are dropped past MAX_PENDING_SAMPLES so a service that never comes back can't grow it.
+    static final int MAX_PENDING_SAMPLES = 10000;
+    private final ArrayList<String> pendingSamples = new ArrayList<>();
+    private long droppedSamples = 0;
+
+    ServiceClient(Context context) {
+        this.context = context.getApplicationContext();
+    }
+
+    // True when the app declared the service in another process than the application one
+    static boolean isRemote(Context context) {
+        try {
+            ServiceInfo info = context.getPackageManager()
+                .getServiceInfo(new ComponentName(context, ForegroundService.class), 0);
+            return info.processName != null
+                && !info.processName.equals(context.getApplicationInfo().processName);
+        }
+        catch (PackageManager.NameNotFoundException e) {
+            return false;
+        }
+    }
+
+    synchronized void bind() {
+        if (bound) {
+            return;
+        }
+        bound = context.bindService(new Intent(context, ForegroundService.class), this, 0);
+    }
+
+    void unbind() {
+        synchronized (this) {
+            if (!bound) {
+                return;
+            }
+            bound = false;
+        }
+        context.unbindService(this);
+        onServiceDisconnected(null);
+    }
+
+    synchronized boolean isConnected() {
+        return service != null;
+    }
+
+    synchronized boolean isIdleStopped() {
+        return idleStopped;
+    }
+
+    void request(int what, Bundle data, Callback callback) {
+        Messenger target;
+        int id;
+        synchronized (this) {
+            target = service;
+            id = nextRequest++;
+            if (target != null) {
+                pending.put(id, callback);
+            }
+        }
+        if (target == null) {
+            callback.onReply(null);
+            return;
+        }
+
+        if (!send(target, what, id, data)) {
+            synchronized (this) {
+                pending.remove(id);
+            }
+            callback.onReply(null);
+        }
+    }
+
+    // One way message, returns false if the service is not running
+    boolean send(int what, int arg, Bundle data) {
+        Messenger target;
+        synchronized (this) {
+            target = service;
+        }
+        return target != null && send(target, what, arg, data);
+    }
+
+    void setEventDelivery(Bundle delivery) {
+        synchronized (this) {
+            eventDelivery = delivery;
+        }
+        send(Constants.MSG_SET_EVENT_DELIVERY, 0, delivery);
+    }
+
+    // Held under the lock while sending so records queued before the connection can't be
+    // overtaken by newer ones. Messenger sends are one way and don't block on the service.
+    synchronized void appendSamples(ArrayList<String> records) {
+        if (service != null && pendingSamples.isEmpty() && sendSamples(service, records)) {
+            return;
+        }
+        pendingSamples.addAll(records);
+        int overflow = pendingSamples.size() - MAX_PENDING_SAMPLES;
+        if (overflow > 0) {
+            pendingSamples.subList(0, overflow).clear();
+            droppedSamples += overflow;
+            Log.e("ForegroundService", overflow + " samples dropped while waiting for the service process, "
+                + droppedSamples + " in total");
+        }
+    }
+
+    private boolean sendSamples(Messenger target, ArrayList<String> records) {
+        Bundle data = new Bundle();
+        data.putStringArrayList("records", records);
+        return send(target, Constants.MSG_APPEND_SAMPLES, 0, data);
+    }
+
+    // Task count and schedules of JS. Returns false when the service is not running, the report
+    // then goes out once it connects.
+    boolean setTasks(Bundle report) {
+        synchronized (this) {
+            tasks = report;
+        }
+        return send(Constants.MSG_SET_TASKS, 0, report);
+    }
+
+    private boolean send(Messenger target, int what, int arg, Bundle data) {
+        Message message = Message.obtain(null, what);
+        message.arg1 = arg;
+        message.replyTo = replyTo;
+        if (data != null) {
+            message.setData(data);
+        }
+        try {
+            target.send(message);
+            return true;
+        }
+        catch (RemoteException e) {
+            Log.e("ForegroundService", "Failed to reach service process: " + e.getMessage());
+            return false;
+        }
+    }
+
+    @Override
+    public void onServiceConnected(ComponentName name, IBinder binder) {
+        Messenger target = new Messenger(binder);
+        Bundle delivery;
+        Bundle report;
+        synchronized (this) {
+            service = target;
+            idleStopped = false;
+            delivery = eventDelivery;
+            report = tasks;
+        }
+        send(target, Constants.MSG_REGISTER_CLIENT, 0, null);
+        if (delivery != null) {
+            send(target, Constants.MSG_SET_EVENT_DELIVERY, 0, delivery);
+        }
+        if (report != null) {
+            send(target, Constants.MSG_SET_TASKS, 0, report);
+        }
+        synchronized (this) {
+            if (!pendingSamples.isEmpty() && service == target
+                && sendSamples(target, new ArrayList<>(pendingSamples))) {
+                pendingSamples.clear();
+            }
+        }
+    }
+
+    @Override
+    public void onServiceDisconnected(ComponentName name) {
+        SparseArray<Callback> failed;
+        synchronized (this) {
+            service = null;
+            failed = pending.clone();
+            pending.clear();
+        }
+        for (int i = 0; i < failed.size(); i++) {
+            failed.valueAt(i).onReply(null);
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package com.supersami.foregroundservice;
+
+import android.os.SystemClock;
+
+
+// Time source for the scheduling code of the service (loop, idle policy, snapshot, metrics).
+// Reading time through here instead of SystemClock/System directly lets the scheduler be driven
+// by a virtual clock, e.g. together with a paused looper, to replay hours of ticks in seconds.
+
+class ServiceClock {
+
+    interface Source {
+        long uptimeMillis();
+        long elapsedRealtime();
+        long currentTimeMillis();
+    }
+
+    private static final Source SYSTEM = new Source() {
+        @Override
+        public long uptimeMillis() {
+            return SystemClock.uptimeMillis();
+        }
+
+        @Override
+        public long elapsedRealtime() {
+            return SystemClock.elapsedRealtime();
+        }
+
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+    };
+
+    private static volatile Source source = SYSTEM;
+
+    // null restores the system clock
+    static void setSource(Source clock) {
+        source = clock != null ? clock : SYSTEM;
+    }
+
+    static long uptimeMillis() {
+        return source.uptimeMillis();
+    }
+
+    static long elapsedRealtime() {
+        return source.elapsedRealtime();
+    }
+
+    static long currentTimeMillis() {
+        return source.currentTimeMillis();
+    }
+}
@@ -0,0 +1,244 @@
+package com.supersami.foregroundservice;
+
+import android.os.Bundle;
+import android.os.Debug;
+import android.os.Process;
+
+import java.util.HashMap;
+import java.util.Map;
+
+
+// Counters describing what the service costs, exposed to JS through getMetrics.
+// Everything is process wide so counters survive service restarts within the same process.
+
+class ServiceMetrics {
+
+    private static ServiceMetrics instance = null;
+
+    private long loopTicks = 0;
+    private long loopLateness = 0;
+    private long loopMaxLateness = 0;
+    private long headlessTasks = 0;
+    private long notificationPosts = 0;
+
+    private int activeHeadlessTasks = 0;
+    private long headlessTaskRuns = 0;
+    private long headlessWallTime = 0;
+    // process CPU time while at least one headless task runs, so overlapping tasks count once
+    private long headlessProcessCpuTime = 0;
+    private long headlessCpuSince = 0;
+    private long headlessMaxWallTime = 0;
+
+    private long idleEntries = 0;
+    private long idleTime = 0;
+    private long idleSince = 0;
+    private long idleLoopDelay = 0;
+    private long wakeupsAvoided = 0;
+    private long idleStops = 0;
+    private long cacheReleases = 0;
+
+    // from the startService call in the module to startForeground, and to the full notification
+    private long foregroundStarts = 0;
+    private long foregroundLatency = 0;
+    private long foregroundMaxLatency = 0;
+    private long lastForegroundLatency = 0;
+    private long lastFullNotificationLatency = 0;
+
+    // time spent in each execution profile while the service runs
+    private final Map<String, Long> profileTimes = new HashMap<>();
+    private String profile = null;
+    private long profileSince = 0;
+    private long profileChanges = 0;
+    private long notificationUpdatesCoalesced = 0;
+
+    private long trimMemoryCalls = 0;
+    private int lastTrimLevel = 0;
+
+    static synchronized ServiceMetrics getInstance() {
+        if (instance == null) {
+            instance = new ServiceMetrics();
+        }
+        return instance;
+    }
+
+    // Starts all counters over, the scheduler simulation replays several scenarios per process
+    static synchronized void reset() {
+        instance = null;
+    }
+
+    synchronized void onLoopTick(long lateness) {
+        loopTicks += 1;
+        loopLateness += lateness;
+        loopMaxLateness = Math.max(loopMaxLateness, lateness);
+    }
+
+    synchronized void onHeadlessTask() {
+        headlessTasks += 1;
+    }
+
+    synchronized void onHeadlessTaskStart() {
+        if (activeHeadlessTasks == 0) {
+            headlessCpuSince = Process.getElapsedCpuTime();
+        }
+        activeHeadlessTasks += 1;
+    }
+
+    synchronized void onHeadlessTaskFinish(long wallTime) {
+        if (activeHeadlessTasks == 1) {
+            headlessProcessCpuTime += Process.getElapsedCpuTime() - headlessCpuSince;
+        }
+        activeHeadlessTasks = Math.max(0, activeHeadlessTasks - 1);
+        headlessTaskRuns += 1;
+        headlessWallTime += wallTime;
+        headlessMaxWallTime = Math.max(headlessMaxWallTime, wallTime);
+    }
+
+    synchronized void onNotificationPost() {
+        notificationPosts += 1;
+    }
+
+    synchronized void onForegroundStart(long latency) {
+        foregroundStarts += 1;
+        foregroundLatency += latency;
+        foregroundMaxLatency = Math.max(foregroundMaxLatency, latency);
+        lastForegroundLatency = latency;
+    }
+
+    synchronized void onFullNotification(long latency) {
+        lastFullNotificationLatency = latency;
+    }
+
+    // null when the service stops, time is only counted while it runs
+    synchronized void onProfileChange(String next) {
+        long now = ServiceClock.elapsedRealtime();
+        if (profile != null) {
+            Long total = profileTimes.get(profile);
+            profileTimes.put(profile, (total != null ? total : 0) + now - profileSince);
+            if (next != null && !next.equals(profile)) {
+                profileChanges += 1;
+            }
+        }
+        profile = next;
+        profileSince = now;
+    }
+
+    synchronized void onNotificationUpdateCoalesced() {
+        notificationUpdatesCoalesced += 1;
+    }
+
+    synchronized void onIdleEnter(long loopDelay) {
+        if (idleSince != 0) {
+            return;
+        }
+        idleEntries += 1;
+        idleSince = ServiceClock.elapsedRealtime();
+        idleLoopDelay = loopDelay;
+    }
+
+    synchronized void onIdleExit() {
+        if (idleSince == 0) {
+            return;
+        }
+        long elapsed = ServiceClock.elapsedRealtime() - idleSince;
+        idleTime += elapsed;
+        if (idleLoopDelay > 0) {
+            wakeupsAvoided += elapsed / idleLoopDelay;
+        }
+        idleSince = 0;
+    }
+
+    synchronized void onIdleStop() {
+        idleStops += 1;
+    }
+
+    synchronized void onCacheRelease() {
+        cacheReleases += 1;
+    }
+
+    synchronized void onTrimMemory(int level) {
+        trimMemoryCalls += 1;
+        lastTrimLevel = level;
+    }
+
+    synchronized Bundle toBundle() {
+        long now = ServiceClock.elapsedRealtime();
+        long currentIdle = idleSince != 0 ? now - idleSince : 0;
+
+        Bundle bundle = new Bundle();
+        bundle.putDouble("loopTicks", loopTicks);
+        bundle.putDouble("loopAverageLateness", loopTicks > 0 ? (double) loopLateness / loopTicks : 0);
+        bundle.putDouble("loopMaxLateness", loopMaxLateness);
+        bundle.putDouble("headlessTasks", headlessTasks);
+        bundle.putDouble("notificationPosts", notificationPosts);
+
+        putHeadlessTasks(bundle);
+
+        bundle.putDouble("foregroundStarts", foregroundStarts);
+        bundle.putDouble("startToForegroundAverage", foregroundStarts > 0 ? (double) foregroundLatency / foregroundStarts : 0);
+        bundle.putDouble("startToForegroundMax", foregroundMaxLatency);
+        bundle.putDouble("startToForegroundLast", lastForegroundLatency);
+        bundle.putDouble("startToFullNotificationLast", lastFullNotificationLatency);
+
+        Bundle times = new Bundle();
+        for (Map.Entry<String, Long> entry : profileTimes.entrySet()) {
+            times.putDouble(entry.getKey(), entry.getValue());
+        }
+        if (profile != null) {
+            times.putDouble(profile, times.getDouble(profile, 0) + now - profileSince);
+        }
+        bundle.putString("profile", profile);
+        bundle.putBundle("profileTime", times);
+        bundle.putDouble("profileChanges", profileChanges);
+        bundle.putDouble("notificationUpdatesCoalesced", notificationUpdatesCoalesced);
+
+        bundle.putBoolean("idle", idleSince != 0);
+        bundle.putDouble("idleEntries", idleEntries);
+        bundle.putDouble("idleTime", idleTime + currentIdle);
+        bundle.putDouble("wakeupsAvoided", wakeupsAvoided + (idleLoopDelay > 0 ? currentIdle / idleLoopDelay : 0));
+        bundle.putDouble("idleStops", idleStops);
+        bundle.putDouble("cacheReleases", cacheReleases);
+
+        bundle.putDouble("trimMemoryCalls", trimMemoryCalls);
+        bundle.putInt("lastTrimLevel", lastTrimLevel);
+
+        Runtime runtime = Runtime.getRuntime();
+        bundle.putDouble("javaHeapUsed", runtime.totalMemory() - runtime.freeMemory());
+        bundle.putDouble("nativeHeapUsed", Debug.getNativeHeapAllocatedSize());
+        return bundle;
+    }
+
+    // Headless tasks run in the UI process, in separate process mode these counters are taken
+    // from there while everything else comes from the service process
+    synchronized void putHeadlessTasks(Bundle bundle) {
+        bundle.putInt("activeHeadlessTasks", activeHeadlessTasks);
+        bundle.putDouble("headlessTaskRuns", headlessTaskRuns);
+        bundle.putDouble("headlessWallTime", headlessWallTime);
+        long processCpuTime = headlessProcessCpuTime;
+        if (activeHeadlessTasks > 0) {
+            processCpuTime += Process.getElapsedCpuTime() - headlessCpuSince;
+        }
+        bundle.putDouble("headlessProcessCpuTime", processCpuTime);
+        bundle.putDouble("headlessMaxWallTime", headlessMaxWallTime);
+    }
+
+    // Resident memory of the calling process. Debug.getMemoryInfo walks the process maps so
+    // this is only meant for on demand metrics, not for ticks.
+    static Bundle getProcessMemory(String processName) {
+        Debug.MemoryInfo info = new Debug.MemoryInfo();
+        Debug.getMemoryInfo(info);
+        Runtime runtime = Runtime.getRuntime();
+
+        Bundle bundle = new Bundle();
+        bundle.putString("process", processName);
+        bundle.putInt("pid", Process.myPid());
+        // kB
+        bundle.putInt("totalPss", info.getTotalPss());
+        bundle.putInt("javaPss", info.dalvikPss);
+        bundle.putInt("nativePss", info.nativePss);
+        bundle.putInt("privateDirty", info.getTotalPrivateDirty());
+        // bytes
+        bundle.putDouble("javaHeapUsed", runtime.totalMemory() - runtime.freeMemory());
+        bundle.putDouble("nativeHeapUsed", Debug.getNativeHeapAllocatedSize());
+        return bundle;
+    }
+}
@@ -0,0 +1,46 @@
+package com.supersami.foregroundservice;
+
+import android.content.Intent;
+import android.os.Bundle;
+
+
+// A named user of the service. Every session owns a notification and optionally a loop, the
+// service stays in the foreground while at least one session is started.
+// Callers that don't name a session share the default one, which keeps the old start counter.
+
+class ServiceSession {
+
+    static final String DEFAULT_ID = "default";
+
+    final String id;
+
+    Bundle notificationConfig;
+    int notificationId;
+    // startService calls without a matching stop
+    int starts = 0;
+
+    Bundle loopConfig = null;
+    long loopDelay = 0;
+    // wall time the loop started at, ticks are due every loopDelay after it
+    long loopAnchor = 0;
+
+    // runtime only, not part of the snapshot
+    Runnable loop = null;
+    Intent tickIntent = null;
+    long nextTickAt = 0;
+
+    ServiceSession(String id) {
+        this.id = id;
+    }
+
+    static String idOf(Bundle config) {
+        if (config == null) {
+            return DEFAULT_ID;
+        }
+        return config.getString("sessionId", DEFAULT_ID);
+    }
+
+    boolean hasLoop() {
+        return loopConfig != null;
+    }
+}
@@ -0,0 +1,425 @@
+package com.supersami.foregroundservice;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+
+// Compact binary snapshot of what the service needs to resume after process death:
+// the sessions with their notification and loop, and the JS task schedules.
+// It is rewritten through an AtomicFile on a background thread. Sessions starting or stopping
+// are written right away, other changes (notification text included) are coalesced into one
+// write per WRITE_DELAY.
+// Ticks do not touch it since the next loop deadline is derived from the loop anchor and interval.
+
+class StateSnapshot {
+
+    private static final String TAG = "StateSnapshot";
+    private static final String FILE_NAME = "foregroundservice_state.bin";
+
+    private static final int MAGIC = 0x46475354; // FGST
+    private static final int VERSION = 2;
+
+    private static final byte TYPE_STRING = 1;
+    private static final byte TYPE_BOOLEAN = 2;
+    private static final byte TYPE_DOUBLE = 3;
+    private static final byte TYPE_INT = 4;
+    private static final byte TYPE_LONG = 5;
+    private static final byte TYPE_BUNDLE = 6;
+
+    private static final long WRITE_DELAY = 1000;
+
+    static class TaskSchedule {
+        final String taskId;
+        final long delay;
+        final boolean onLoop;
+        final long anchor;
+
+        TaskSchedule(String taskId, long delay, boolean onLoop, long anchor) {
+            this.taskId = taskId;
+            this.delay = delay;
+            this.onLoop = onLoop;
+            this.anchor = anchor;
+        }
+
+        boolean sameAs(TaskSchedule other) {
+            return taskId.equals(other.taskId) && delay == other.delay
+                && onLoop == other.onLoop && anchor == other.anchor;
+        }
+
+        // first deadline at or after now, keeping the original cadence
+        long nextDeadline(long now) {
+            if (!onLoop || delay <= 0 || now <= anchor) {
+                return anchor;
+            }
+            long elapsed = now - anchor;
+            return anchor + ((elapsed + delay - 1) / delay) * delay;
+        }
+    }
+
+    // Schedules travel between processes as bundles in separate process mode
+    static ArrayList<Bundle> toBundles(List<TaskSchedule> schedules) {
+        ArrayList<Bundle> bundles = new ArrayList<>(schedules.size());
+        for (TaskSchedule schedule : schedules) {
+            Bundle bundle = new Bundle();
+            bundle.putString("taskId", schedule.taskId);
+            bundle.putLong("delay", schedule.delay);
+            bundle.putBoolean("onLoop", schedule.onLoop);
+            bundle.putLong("anchor", schedule.anchor);
+            bundles.add(bundle);
+        }
+        return bundles;
+    }
+
+    static List<TaskSchedule> toSchedules(List<Bundle> bundles) {
+        List<TaskSchedule> schedules = new ArrayList<>(bundles.size());
+        for (Bundle bundle : bundles) {
+            schedules.add(new TaskSchedule(bundle.getString("taskId"), bundle.getLong("delay"),
+                bundle.getBoolean("onLoop"), bundle.getLong("anchor")));
+        }
+        return schedules;
+    }
+
+    private static StateSnapshot instance = null;
+
+    private final AtomicFile file;
+    private Handler writer = null;
+    private boolean writePending = false;
+
+    private final Runnable writeRunnable = new Runnable() {
+        @Override
+        public void run() {
+            byte[] data;
+            synchronized (StateSnapshot.this) {
+                writePending = false;
+                data = serialize();
+            }
+            if (data != null) {
+                write(data);
+            }
+        }
+    };
+
+    private List<ServiceSession> sessions = new ArrayList<>();
+    private String foregroundSessionId = null;
+    private List<TaskSchedule> tasks = new ArrayList<>();
+
+    static synchronized StateSnapshot getInstance(Context context) {
+        if (instance == null) {
+            instance = new StateSnapshot(new File(context.getApplicationContext().getFilesDir(), FILE_NAME));
+            instance.read();
+        }
+        return instance;
+    }
+
+    private StateSnapshot(File file) {
+        this.file = new AtomicFile(file);
+    }
+
+    // Saved sessions, the foreground one first
+    synchronized List<ServiceSession> getSessions() {
+        List<ServiceSession> result = new ArrayList<>(sessions.size());
+        for (ServiceSession session : sessions) {
+            if (session.id.equals(foregroundSessionId)) {
+                result.add(0, copy(session));
+            } else {
+                result.add(copy(session));
+            }
+        }
+        return result;
+    }
+
+    // delay until the next loop tick, keeping the cadence the loop had before the process died
+    static long getLoopDelay(ServiceSession session, long now) {
+        if (!session.hasLoop()) {
+            return 0;
+        }
+        TaskSchedule schedule = new TaskSchedule(null, session.loopDelay, true, session.loopAnchor);
+        return Math.max(0, schedule.nextDeadline(now) - now);
+    }
+
+    synchronized List<TaskSchedule> getTasks() {
+        return new ArrayList<>(tasks);
+    }
+
+    synchronized void setSessions(Collection<ServiceSession> current, String foregroundId) {
+        List<ServiceSession> copies = new ArrayList<>(current.size());
+        for (ServiceSession session : current) {
+            copies.add(copy(session));
+        }
+
+        boolean sameIds = copies.size() == sessions.size();
+        boolean changed = !sameIds || !equal(foregroundId, foregroundSessionId);
+        for (int i = 0; i < copies.size() && !changed; i++) {
+            ServiceSession next = copies.get(i);
+            ServiceSession previous = sessions.get(i);
+            sameIds = next.id.equals(previous.id);
+            changed = !sameIds || next.notificationId != previous.notificationId
+                || next.starts != previous.starts || next.loopDelay != previous.loopDelay
+                || next.loopAnchor != previous.loopAnchor
+                || !NotificationHelper.sameConfig(next.loopConfig, previous.loopConfig)
+                || !NotificationHelper.sameConfig(next.notificationConfig, previous.notificationConfig);
+        }
+
+        sessions = copies;
+        foregroundSessionId = foregroundId;
+        if (changed) {
+            scheduleWrite(!sameIds);
+        }
+    }
+
+    synchronized void setTasks(List<TaskSchedule> schedules) {
+        boolean changed = schedules.size() != tasks.size();
+        for (int i = 0; i < schedules.size() && !changed; i++) {
+            changed = !schedules.get(i).sameAs(tasks.get(i));
+        }
+        if (changed) {
+            tasks = new ArrayList<>(schedules);
+            scheduleWrite(false);
+        }
+    }
+
+    synchronized void clear() {
+        sessions = new ArrayList<>();
+        foregroundSessionId = null;
+        tasks = new ArrayList<>();
+
+        // queued behind any write in progress so it can't bring the file back
+        Handler handler = getWriter();
+        handler.removeCallbacks(writeRunnable);
+        writePending = false;
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (StateSnapshot.this) {
+                    if (writePending) {
+                        return;
+                    }
+                }
+                file.delete();
+            }
+        });
+    }
+
+    private Handler getWriter() {
+        if (writer == null) {
+            HandlerThread thread = new HandlerThread("ForegroundServiceSnapshot");
+            thread.start();
+            writer = new Handler(thread.getLooper());
+        }
+        return writer;
+    }
+
+    private void scheduleWrite(boolean now) {
+        Handler handler = getWriter();
+        if (now) {
+            handler.removeCallbacks(writeRunnable);
+            handler.post(writeRunnable);
+        } else if (!writePending) {
+            handler.postDelayed(writeRunnable, WRITE_DELAY);
+        }
+        writePending = true;
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+
+    private static ServiceSession copy(ServiceSession session) {
+        ServiceSession copy = new ServiceSession(session.id);
+        copy.notificationConfig = session.notificationConfig;
+        copy.notificationId = session.notificationId;
+        copy.starts = session.starts;
+        copy.loopConfig = session.loopConfig;
+        copy.loopDelay = session.loopDelay;
+        copy.loopAnchor = session.loopAnchor;
+        return copy;
+    }
+
+    // Called with the lock held, the file itself is written without it
+    private byte[] serialize() {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+
+            out.writeUTF(foregroundSessionId != null ? foregroundSessionId : "");
+            out.writeInt(sessions.size());
+            for (ServiceSession session : sessions) {
+                out.writeUTF(session.id);
+                writeBundle(out, session.notificationConfig);
+                out.writeInt(session.notificationId);
+                out.writeInt(session.starts);
+                writeBundle(out, session.loopConfig);
+                out.writeLong(session.loopDelay);
+                out.writeLong(session.loopAnchor);
+            }
+
+            out.writeInt(tasks.size());
+            for (TaskSchedule task : tasks) {
+                out.writeUTF(task.taskId);
+                out.writeLong(task.delay);
+                out.writeBoolean(task.onLoop);
+                out.writeLong(task.anchor);
+            }
+            out.flush();
+            return bytes.toByteArray();
+        }
+        catch (IOException e) {
+            Log.e(TAG, "Failed to serialize snapshot: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private void write(byte[] data) {
+        FileOutputStream stream = null;
+        try {
+            stream = file.startWrite();
+            stream.write(data);
+            file.finishWrite(stream);
+        }
+        catch (IOException e) {
+            Log.e(TAG, "Failed to write snapshot: " + e.getMessage());
+            if (stream != null) {
+                file.failWrite(stream);
+            }
+        }
+    }
+
+    private void read() {
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(file.readFully()));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                Log.w(TAG, "Ignoring snapshot with unknown format");
+                return;
+            }
+
+            String foregroundId = in.readUTF();
+            int sessionCount = in.readInt();
+            List<ServiceSession> restored = new ArrayList<>(sessionCount);
+            for (int i = 0; i < sessionCount; i++) {
+                ServiceSession session = new ServiceSession(in.readUTF());
+                session.notificationConfig = readBundle(in);
+                session.notificationId = in.readInt();
+                session.starts = in.readInt();
+                session.loopConfig = readBundle(in);
+                session.loopDelay = in.readLong();
+                session.loopAnchor = in.readLong();
+                restored.add(session);
+            }
+            sessions = restored;
+            foregroundSessionId = foregroundId.isEmpty() ? null : foregroundId;
+
+            int count = in.readInt();
+            List<TaskSchedule> schedules = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                schedules.add(new TaskSchedule(in.readUTF(), in.readLong(), in.readBoolean(), in.readLong()));
+            }
+            tasks = schedules;
+        }
+        catch (FileNotFoundException e) {
+            // nothing saved yet
+        }
+        catch (IOException e) {
+            Log.e(TAG, "Failed to read snapshot: " + e.getMessage());
+            sessions = new ArrayList<>();
+            foregroundSessionId = null;
+            tasks = new ArrayList<>();
+        }
+    }
+
+    // Only the value types produced by Arguments.toBundle are kept
+    private static void writeBundle(DataOutputStream out, Bundle bundle) throws IOException {
+        if (bundle == null) {
+            out.writeInt(-1);
+            return;
+        }
+
+        List<String> keys = new ArrayList<>();
+        for (String key : bundle.keySet()) {
+            Object value = bundle.get(key);
+            if (value instanceof String || value instanceof Boolean || value instanceof Double
+                || value instanceof Integer || value instanceof Long || value instanceof Bundle) {
+                keys.add(key);
+            }
+        }
+
+        out.writeInt(keys.size());
+        for (String key : keys) {
+            Object value = bundle.get(key);
+            out.writeUTF(key);
+            if (value instanceof String) {
+                out.writeByte(TYPE_STRING);
+                out.writeUTF((String) value);
+            } else if (value instanceof Boolean) {
+                out.writeByte(TYPE_BOOLEAN);
+                out.writeBoolean((Boolean) value);
+            } else if (value instanceof Double) {
+                out.writeByte(TYPE_DOUBLE);
+                out.writeDouble((Double) value);
+            } else if (value instanceof Integer) {
+                out.writeByte(TYPE_INT);
+                out.writeInt((Integer) value);
+            } else if (value instanceof Long) {
+                out.writeByte(TYPE_LONG);
+                out.writeLong((Long) value);
+            } else {
+                out.writeByte(TYPE_BUNDLE);
+                writeBundle(out, (Bundle) value);
+            }
+        }
+    }
+
+    private static Bundle readBundle(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        if (count < 0) {
+            return null;
+        }
+
+        Bundle bundle = new Bundle();
+        for (int i = 0; i < count; i++) {
+            String key = in.readUTF();
+            byte type = in.readByte();
+            switch (type) {
+                case TYPE_STRING:
+                    bundle.putString(key, in.readUTF());
+                    break;
+                case TYPE_BOOLEAN:
+                    bundle.putBoolean(key, in.readBoolean());
+                    break;
+                case TYPE_DOUBLE:
+                    bundle.putDouble(key, in.readDouble());
+                    break;
+                case TYPE_INT:
+                    bundle.putInt(key, in.readInt());
+                    break;
+                case TYPE_LONG:
+                    bundle.putLong(key, in.readLong());
+                    break;
+                case TYPE_BUNDLE:
+                    bundle.putBundle(key, readBundle(in));
+                    break;
+                default:
+                    throw new IOException("Unknown value type " + type);
+            }
+        }
+        return bundle;
+    }
+}
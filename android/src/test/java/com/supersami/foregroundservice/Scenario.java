@@ -0,0 +1,139 @@
+package com.supersami.foregroundservice;
+
+import android.os.Bundle;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+
+
+// A scheduler scenario from src/test/resources/scenarios: the notification and loop config
+// the service is started with, the steps played against it and the expected outcome.
+//
+// Steps happen at a time (ms since start) and optionally repeat every given interval:
+//   update - posts the notification with the given fields changed. The message carries the
+//            step time so no two updates are the same.
+//   block  - holds the main thread for the given ms
+//   tasks  - reports the given JS task count
+// The run ends just before duration, so a loop of delay d ticks duration / d times.
+
+class Scenario {
+
+    final String name;
+    private final JSONObject json;
+
+    private Scenario(String name, JSONObject json) {
+        this.name = name;
+        this.json = json;
+    }
+
+    static Scenario load(String name) throws IOException, JSONException {
+        InputStream in = Scenario.class.getResourceAsStream("/scenarios/" + name + ".json");
+        if (in == null) {
+            throw new IOException("No scenario " + name);
+        }
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return new Scenario(name, new JSONObject(out.toString("UTF-8")));
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    JSONObject expect() throws JSONException {
+        return json.getJSONObject("expect");
+    }
+
+    void play(ServiceSimulation simulation) throws JSONException {
+        Bundle notification = toBundle(json.getJSONObject("notification"));
+        simulation.start(notification);
+        simulation.startLoop(toBundle(json.getJSONObject("loop")));
+        if (json.has("taskCount")) {
+            simulation.reportTasks(json.getInt("taskCount"));
+        }
+
+        long duration = json.getLong("duration");
+        JSONArray steps = json.optJSONArray("steps");
+        for (long at = nextStep(steps, -1); at < duration; at = nextStep(steps, at)) {
+            simulation.advanceTo(at);
+            for (int i = 0; i < steps.length(); i++) {
+                JSONObject step = steps.getJSONObject(i);
+                if (!stepsAt(step, at)) {
+                    continue;
+                }
+                if (step.has("update")) {
+                    Bundle update = new Bundle(notification);
+                    update.putAll(toBundle(step.getJSONObject("update")));
+                    update.putString("message", "at " + at);
+                    simulation.update(update);
+                }
+                if (step.has("block")) {
+                    simulation.block(step.getLong("block"));
+                }
+                if (step.has("tasks")) {
+                    simulation.reportTasks(step.getInt("tasks"));
+                }
+            }
+        }
+        simulation.advanceTo(duration - 1);
+    }
+
+    private static boolean stepsAt(JSONObject step, long at) throws JSONException {
+        long first = step.getLong("at");
+        long every = step.optLong("every", 0);
+        return at == first || (every > 0 && at > first && (at - first) % every == 0);
+    }
+
+    // earliest step time after the given one, Long.MAX_VALUE when there is none
+    private static long nextStep(JSONArray steps, long after) throws JSONException {
+        long next = Long.MAX_VALUE;
+        for (int i = 0; steps != null && i < steps.length(); i++) {
+            JSONObject step = steps.getJSONObject(i);
+            long first = step.getLong("at");
+            long every = step.optLong("every", 0);
+            long at = first;
+            if (first <= after) {
+                if (every <= 0) {
+                    continue;
+                }
+                at = first + ((after - first) / every + 1) * every;
+            }
+            next = Math.min(next, at);
+        }
+        return next;
+    }
+
+    // Numbers become doubles, as configs coming from JS do
+    static Bundle toBundle(JSONObject object) throws JSONException {
+        Bundle bundle = new Bundle();
+        Iterator<String> keys = object.keys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            Object value = object.get(key);
+            if (value instanceof JSONObject) {
+                bundle.putBundle(key, toBundle((JSONObject) value));
+            }
+            else if (value instanceof Boolean) {
+                bundle.putBoolean(key, (Boolean) value);
+            }
+            else if (value instanceof Number) {
+                bundle.putDouble(key, ((Number) value).doubleValue());
+            }
+            else {
+                bundle.putString(key, String.valueOf(value));
+            }
+        }
+        return bundle;
+    }
+}
@@ -0,0 +1,58 @@
+package com.supersami.foregroundservice;
+
+import android.os.Bundle;
+
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.ParameterizedRobolectricTestRunner;
+import org.robolectric.annotation.LooperMode;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+import static org.junit.Assert.assertEquals;
+
+
+// Replays each scenario on the virtual clock and checks how many loop ticks ran, how late the
+// most delayed one was and how many notifications were posted.
+
+@RunWith(ParameterizedRobolectricTestRunner.class)
+@LooperMode(LooperMode.Mode.PAUSED)
+public class SchedulerScenarioTest {
+
+    @ParameterizedRobolectricTestRunner.Parameters(name = "{0}")
+    public static Collection<Object[]> scenarios() {
+        return Arrays.asList(new Object[][] {
+            { "steady_loop" },
+            { "blocked_main_thread" },
+            { "throttled_updates" },
+            { "idle_timeout" },
+        });
+    }
+
+    private final String name;
+
+    public SchedulerScenarioTest(String name) {
+        this.name = name;
+    }
+
+    @Test
+    public void replay() throws Exception {
+        Scenario scenario = Scenario.load(name);
+        ServiceSimulation simulation = new ServiceSimulation();
+        Bundle metrics;
+        try {
+            scenario.play(simulation);
+            metrics = simulation.metrics();
+        }
+        finally {
+            simulation.finish();
+        }
+
+        JSONObject expect = scenario.expect();
+        assertEquals("loop ticks", expect.getLong("ticks"), (long) metrics.getDouble("loopTicks"));
+        assertEquals("max lateness", expect.getLong("maxLateness"), (long) metrics.getDouble("loopMaxLateness"));
+        assertEquals("notification posts", expect.getLong("posts"), (long) metrics.getDouble("notificationPosts"));
+    }
+}
@@ -0,0 +1,153 @@
+package com.supersami.foregroundservice;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.ActivityInfo;
+import android.content.pm.ResolveInfo;
+import android.os.Bundle;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import org.robolectric.Robolectric;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.android.controller.ServiceController;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.time.Duration;
+
+import static com.supersami.foregroundservice.Constants.NOTIFICATION_CONFIG;
+import static com.supersami.foregroundservice.Constants.TASK_CONFIG;
+import static com.supersami.foregroundservice.Constants.TASK_COUNT;
+import static org.robolectric.Shadows.shadowOf;
+
+
+// Drives the service on Robolectric's paused main looper. Time only moves when the simulation
+// advances it, so an hour of loop ticks replays in well under a second. The handler delays and
+// ServiceClock read the same virtual clock: uptime and elapsed realtime are Robolectric's
+// SystemClock, wall time is derived from it.
+
+class ServiceSimulation {
+
+    private static final long WALL_CLOCK_BASE = 1700000000000L;
+
+    private final ServiceController<ForegroundService> controller;
+    final ForegroundService service;
+    private final long startedAt;
+    private int startId = 0;
+
+    ServiceSimulation() {
+        ServiceMetrics.reset();
+        ServiceClock.setSource(new ServiceClock.Source() {
+            @Override
+            public long uptimeMillis() {
+                return SystemClock.uptimeMillis();
+            }
+
+            @Override
+            public long elapsedRealtime() {
+                return SystemClock.elapsedRealtime();
+            }
+
+            @Override
+            public long currentTimeMillis() {
+                return WALL_CLOCK_BASE + SystemClock.elapsedRealtime();
+            }
+        });
+        registerLauncher(RuntimeEnvironment.getApplication());
+
+        controller = Robolectric.buildService(ForegroundService.class).create();
+        service = controller.get();
+        startedAt = SystemClock.uptimeMillis();
+    }
+
+    // NotificationHelper points notifications at the launcher activity and doesn't build
+    // full ones without it
+    private static void registerLauncher(Context context) {
+        Intent launcher = new Intent(Intent.ACTION_MAIN)
+            .addCategory(Intent.CATEGORY_LAUNCHER)
+            .setPackage(context.getPackageName());
+        ResolveInfo info = new ResolveInfo();
+        info.activityInfo = new ActivityInfo();
+        info.activityInfo.packageName = context.getPackageName();
+        info.activityInfo.name = MainActivity.class.getName();
+        shadowOf(context.getPackageManager()).addResolveInfoForIntent(launcher, info);
+    }
+
+    // ms since the simulation started
+    long now() {
+        return SystemClock.uptimeMillis() - startedAt;
+    }
+
+    // Runs everything due until the given time
+    void advanceTo(long at) {
+        long delta = at - now();
+        if (delta > 0) {
+            shadowOf(Looper.getMainLooper()).idleFor(Duration.ofMillis(delta));
+        }
+    }
+
+    // Holds the main thread, as a slow callback would. What comes due meanwhile runs late, on
+    // the next advance.
+    void block(long millis) {
+        SystemClock.setCurrentTimeMillis(SystemClock.uptimeMillis() + millis);
+    }
+
+    void start(Bundle notification) {
+        Bundle extras = new Bundle();
+        extras.putBundle(NOTIFICATION_CONFIG, notification);
+        send(Constants.ACTION_FOREGROUND_SERVICE_START, extras);
+    }
+
+    void startLoop(Bundle loop) {
+        Bundle extras = new Bundle();
+        extras.putBundle(TASK_CONFIG, loop);
+        send(Constants.ACTION_FOREGROUND_RUN_TASK, extras);
+    }
+
+    void update(Bundle notification) {
+        Bundle extras = new Bundle();
+        extras.putBundle(NOTIFICATION_CONFIG, notification);
+        send(Constants.ACTION_UPDATE_NOTIFICATION, extras);
+    }
+
+    void reportTasks(int count) {
+        Bundle extras = new Bundle();
+        extras.putInt(TASK_COUNT, count);
+        send(Constants.ACTION_TASK_ACTIVITY, extras);
+    }
+
+    void send(String action, Bundle extras) {
+        Intent intent = new Intent(RuntimeEnvironment.getApplication(), ForegroundService.class)
+            .setAction(action);
+        if (extras != null) {
+            intent.putExtras(extras);
+        }
+        service.onStartCommand(intent, 0, ++startId);
+        settle();
+    }
+
+    // Lets the build and snapshot threads finish their work, then runs what they posted back
+    // to the main thread. Nothing that is not yet due runs.
+    void settle() {
+        for (Looper looper : ShadowLooper.getAllLoopers()) {
+            if (looper != Looper.getMainLooper()) {
+                shadowOf(looper).idle();
+            }
+        }
+        shadowOf(Looper.getMainLooper()).idle();
+    }
+
+    Bundle metrics() {
+        return ServiceMetrics.getInstance().toBundle();
+    }
+
+    void finish() {
+        try {
+            send(Constants.ACTION_FOREGROUND_SERVICE_STOP_ALL, null);
+            controller.destroy();
+        }
+        finally {
+            ServiceClock.setSource(null);
+        }
+    }
+}
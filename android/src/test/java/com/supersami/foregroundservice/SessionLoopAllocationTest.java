@@ -0,0 +1,85 @@
+package com.supersami.foregroundservice;
+
+import android.content.Context;
+import android.content.Intent;
+import android.os.Bundle;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.LooperMode;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+
+// Counts what a steady state loop tick allocates. Delivering the tick intent is measured on its
+// own and subtracted, since under Robolectric it allocates to record the started service while
+// on a device it is a binder call. Whatever remains is allocated by the loop itself.
+
+@RunWith(RobolectricTestRunner.class)
+@LooperMode(LooperMode.Mode.PAUSED)
+public class SessionLoopAllocationTest {
+
+    private static final int TICKS = 10000;
+    // bytes a tick may allocate on top of delivering its intent
+    private static final long MAX_BYTES_PER_TICK = 16;
+
+    @Test
+    public void steadyStateTickAllocatesNothing() {
+        ServiceSimulation simulation = new ServiceSimulation();
+        try {
+            Bundle notification = new Bundle();
+            notification.putDouble("id", 1);
+            notification.putString("title", "Tracking");
+            notification.putString("message", "Running");
+            simulation.start(notification);
+
+            Bundle loop = new Bundle();
+            loop.putString("taskName", "myTaskName");
+            loop.putBoolean("onLoop", true);
+            loop.putDouble("loopDelay", 1000);
+            simulation.startLoop(loop);
+            // a few real ticks first, so everything they touch is loaded
+            simulation.advanceTo(10000);
+
+            ServiceSession session = simulation.service.getSession(ServiceSession.DEFAULT_ID);
+            assertNotNull(session);
+            assertNotNull(session.loop);
+
+            final Context context = simulation.service.getApplicationContext();
+            final Intent intent = session.tickIntent;
+            long delivery = allocatedPerRun(new Runnable() {
+                @Override
+                public void run() {
+                    context.startService(intent);
+                }
+            });
+            long tick = allocatedPerRun(session.loop);
+
+            assertTrue("a tick allocated " + tick + " bytes, " + delivery + " of them to deliver its intent",
+                tick - delivery <= MAX_BYTES_PER_TICK);
+        }
+        finally {
+            simulation.finish();
+        }
+    }
+
+    // average bytes allocated by the current thread per run, after as many runs to warm up
+    private static long allocatedPerRun(Runnable runnable) {
+        com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+
+        for (int i = 0; i < TICKS; i++) {
+            runnable.run();
+        }
+        long before = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < TICKS; i++) {
+            runnable.run();
+        }
+        return (threads.getThreadAllocatedBytes(thread) - before) / TICKS;
+    }
+}
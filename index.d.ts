@@ -1,3 +1,127 @@
+type NotificationGroupOptions = {
+  channelId?: string;
+  channelName?: string;
+  channelDescription?: string;
+  groupTitle?: string;
+} & (
+  | { group?: undefined; groupSummaryId?: number }
+  | { group: string; groupSummaryId: number }
+);
+
+type NotificationProgress = {
+  max?: number;
+  curr?: number;
+  indeterminate?: boolean;
+};
+
+type NotificationTimer = {
+  when: number;
+  countDown?: boolean;
+};
+
+type NotificationOptions = {
+  id: any;
+  title?: any;
+  message?: string | undefined;
+  vibration?: boolean | undefined;
+  visibility?: string | undefined;
+  largeIcon?: string | undefined;
+  icon?: string | undefined;
+  importance?: string | undefined;
+  number?: string | undefined;
+  button?: boolean | undefined;
+  buttonText?: string | undefined;
+  buttonOnPress?: string | undefined;
+  button2?: boolean | undefined;
+  button2Text?: string | undefined;
+  button2OnPress?: string | undefined;
+  mainOnPress?: string | undefined;
+  progress?: NotificationProgress;
+  timer?: NotificationTimer;
+  showWhen?: boolean;
+  color?: string;
+  setOnlyAlertOnce?: string;
+} & NotificationGroupOptions;
+
+type TaskBudget = {
+  syncMs?: number;
+  wallMs?: number;
+  action?: "stretch" | "suspend";
+};
+
+type TaskBudgetEvent = {
+  taskId: string;
+  syncTime: number;
+  wallTime: number;
+  budget: TaskBudget;
+  action: "stretch" | "suspend";
+  delay: number;
+};
+
+type TaskBudgetOptions = {
+  budget?: TaskBudget;
+  onBudgetExceeded?: (event: TaskBudgetEvent) => void;
+};
+
+type ExecutionProfileName =
+  | "normal"
+  | "charging"
+  | "powerSave"
+  | "deviceIdle"
+  | "thermal";
+
+type ExecutionProfile = {
+  loopScale?: number;
+  pauseLowPriority?: boolean;
+  minNotificationInterval?: number;
+};
+
+type PowerState = {
+  profile: ExecutionProfileName;
+  powerSave: boolean;
+  deviceIdle: boolean;
+  charging: boolean;
+  batteryLevel: number;
+  thermalStatus: number;
+  loopScale: number;
+  pauseLowPriority: boolean;
+  minNotificationInterval: number;
+};
+
+type TaskPriority = "critical" | "normal" | "background";
+
+type LaneStats = {
+  depth: number;
+  running: number;
+  concurrency: number;
+  dispatched: number;
+  deferred: number;
+  averageWait: number;
+  maxWait: number;
+  oldestWait: number;
+};
+
+type ServiceSessionInfo = {
+  sessionId: string;
+  notificationId: number;
+  starts: number;
+  foreground: boolean;
+  loop: boolean;
+};
+
+type TaskUsage = {
+  runs: number;
+  syncTime: number;
+  wallTime: number;
+  lastSyncTime: number;
+  lastWallTime: number;
+  overruns: number;
+  delay: number;
+  baseDelay: number;
+  budget?: TaskBudget;
+  suspended: boolean;
+};
+
 declare const ReactNativeForegroundService: {
   register: () => void;
   start: ({
@@ -18,8 +142,13 @@ declare const ReactNativeForegroundService: {
     button2OnPress,
     mainOnPress,
     progress,
+    timer,
+    showWhen,
     color,
     setOnlyAlertOnce,
+    idleTimeout,
+    stopOnIdle,
+    profiles,
   }: {
     id: any;
     title?: any;
@@ -37,60 +166,30 @@ declare const ReactNativeForegroundService: {
     button2Text?: string | undefined;
     button2OnPress?: string | undefined;
     mainOnPress?: string | undefined;
-    progress?: {
-      max: number;
-      curr: number;
-    };
-    color?: string;
-    setOnlyAlertOnce?: string;
-  }) => Promise<void>;
-  update: ({
-    id,
-    title,
-    message,
-    vibration,
-    visibility,
-    largeIcon,
-    icon,
-    importance,
-    number,
-    button,
-    buttonText,
-    buttonOnPress,
-    button2,
-    button2Text,
-    button2OnPress,
-    mainOnPress,
-    progress,
-    color,
-    setOnlyAlertOnce,
-  }: {
-    id: any;
-    title?: any;
-    message?: string | undefined;
-    vibration?: boolean | undefined;
-    visibility?: string | undefined;
-    largeIcon?: string | undefined;
-    icon?: string | undefined;
-    importance?: string | undefined;
-    number?: string | undefined;
-    button?: boolean | undefined;
-    buttonText?: string | undefined;
-    buttonOnPress?: string | undefined;
-    button2?: boolean | undefined;
-    button2Text?: string | undefined;
-    button2OnPress?: string | undefined;
-    mainOnPress?: string | undefined;
-    progress?: {
-      max: number;
-      curr: number;
-    };
+    progress?: NotificationProgress;
+    timer?: NotificationTimer;
+    showWhen?: boolean;
     color?: string;
     setOnlyAlertOnce?: string;
-  }) => Promise<void>;
+    idleTimeout?: number;
+    stopOnIdle?: boolean;
+    profiles?: { [name in ExecutionProfileName]?: ExecutionProfile };
+  } & NotificationGroupOptions) => Promise<void>;
+  update: (options: NotificationOptions) => Promise<void>;
+  update_notifications: (notifications: NotificationOptions[]) => Promise<void>;
   stop: () => Promise<any>;
   stopAll: () => Promise<any>;
   is_running: () => boolean;
+  start_session: (
+    sessionId: string,
+    options: NotificationOptions & {
+      idleTimeout?: number;
+      stopOnIdle?: boolean;
+      profiles?: { [name in ExecutionProfileName]?: ExecutionProfile };
+    }
+  ) => Promise<void>;
+  stop_session: (sessionId: string) => Promise<any>;
+  get_sessions: () => Promise<ServiceSessionInfo[]>;
   add_task: (
     task: any,
     {
@@ -105,7 +204,10 @@ declare const ReactNativeForegroundService: {
       taskId?: string | undefined;
       onSuccess?: (() => void) | undefined;
       onError?: ((e) => void) | undefined;
-    }
+      sessionId?: string | undefined;
+      lowPriority?: boolean | undefined;
+      priority?: TaskPriority | undefined;
+    } & TaskBudgetOptions
   ) => string;
   update_task: (
     task: any,
@@ -121,14 +223,104 @@ declare const ReactNativeForegroundService: {
       taskId?: string | undefined;
       onSuccess?: (() => void) | undefined;
       onError?: (() => void) | undefined;
-    }
+      sessionId?: string | undefined;
+      lowPriority?: boolean | undefined;
+      priority?: TaskPriority | undefined;
+    } & TaskBudgetOptions
   ) => string;
   remove_task: (taskId: any) => void;
   is_task_running: (taskId: any) => boolean;
   remove_all_tasks: () => {};
   get_task: (taskId: any) => any;
   get_all_tasks: () => {};
+  get_task_usage: (taskId: any) => TaskUsage | undefined;
+  get_all_task_usage: () => { [taskId: string]: TaskUsage };
+  resume_task: (taskId: any) => boolean;
+  get_lane_stats: () => { [lane in TaskPriority]: LaneStats };
+  set_lane_options: (
+    options: { [lane in TaskPriority]?: { concurrency: number } } & {
+      tickBudget?: number;
+    }
+  ) => void;
   cancel_notification: (id: any) => void;
-  eventListener: (callBack: any) => () => void;
+  get_metrics: () => Promise<{
+    loopTicks: number;
+    loopAverageLateness: number;
+    loopMaxLateness: number;
+    headlessTasks: number;
+    notificationPosts: number;
+    idle: boolean;
+    idleEntries: number;
+    idleTime: number;
+    wakeupsAvoided: number;
+    idleStops: number;
+    cacheReleases: number;
+    trimMemoryCalls: number;
+    lastTrimLevel: number;
+    javaHeapUsed: number;
+    nativeHeapUsed: number;
+    activeHeadlessTasks: number;
+    headlessTaskRuns: number;
+    headlessWallTime: number;
+    headlessProcessCpuTime: number;
+    headlessMaxWallTime: number;
+    foregroundStarts: number;
+    startToForegroundAverage: number;
+    startToForegroundMax: number;
+    startToForegroundLast: number;
+    startToFullNotificationLast: number;
+    profile: ExecutionProfileName | null;
+    profileTime: { [name in ExecutionProfileName]?: number };
+    profileChanges: number;
+    notificationUpdatesCoalesced: number;
+    power?: PowerState;
+    events: {
+      queued: number;
+      delivered: number;
+      dropped: number;
+      flushes: number;
+      pending: number;
+      capacity: number;
+    };
+    serviceEvents?: {
+      queued: number;
+      delivered: number;
+      dropped: number;
+      flushes: number;
+      pending: number;
+      capacity: number;
+    };
+    processes: {
+      process: string;
+      pid: number;
+      totalPss: number;
+      javaPss: number;
+      nativePss: number;
+      privateDirty: number;
+      javaHeapUsed: number;
+      nativeHeapUsed: number;
+    }[];
+  }>;
+  append_sample: (sample: string | object) => void;
+  append_samples: (samples: (string | object)[]) => void;
+  drain_samples: (options?: {
+    maxSegments?: number;
+    maxRecords?: number;
+    includeActive?: boolean;
+  }) => Promise<{ segment: string; records: string[] }[]>;
+  commit_samples: (segments: string[]) => Promise<number>;
+  get_sample_stats: () => Promise<{
+    records: number;
+    dropped: number;
+    droppedSegments: number;
+    flushes: number;
+    pendingBytes: number;
+  }>;
+  eventListener: (
+    callBack: (data: any, time: number) => void,
+    type?: "notificationClick" | "tick" | "taskFinished" | "idle" | "profile"
+  ) => () => void;
+  set_event_interval: (interval: number) => void;
+  budgetListener: (callBack: (event: TaskBudgetEvent) => void) => () => void;
 };
 export default ReactNativeForegroundService;
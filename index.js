@@ -71,6 +71,16 @@ class ForegroundService {
     return await ForegroundServiceModule.updateNotification(notificationConfig);
   }
 
+  /**
+   * Updates several notifications with a single call. Notifications sharing a group
+   * get one summary notification, unchanged notifications are not re-posted.
+   * @param {NotificationConfig[]} notificationConfigs - Notification configs
+   * @return Promise
+   */
+  static async updateNotifications(notificationConfigs) {
+    return await ForegroundServiceModule.updateNotifications(notificationConfigs);
+  }
+
   /**
    * Cancels/dimisses a notification given its id. Useful if the service used
    * more than one notification
@@ -92,6 +102,24 @@ class ForegroundService {
     return await ForegroundServiceModule.stopService();
   }
 
+  /**
+   * Stops a session started with a sessionId in its notification config. The service
+   * stays in the foreground while other sessions are running.
+   * @param {string} sessionId - Session to stop
+   * @return Promise
+   */
+  static async stopSession(sessionId) {
+    return await ForegroundServiceModule.stopSession(sessionId);
+  }
+
+  /**
+   * Returns the running sessions as [{ sessionId, notificationId, starts, foreground, loop }]
+   * @return Promise
+   */
+  static async getSessions() {
+    return await ForegroundServiceModule.getSessions();
+  }
+
   /**
    * Stop foreground service. Note: Pending tasks might still complete.
    * This will stop the service regardless of how many times start was called
@@ -115,6 +143,40 @@ class ForegroundService {
     return await ForegroundServiceModule.runTask(taskConfig);
   }
 
+  /**
+   * Appends records to the native sample sink. Records are written to a memory mapped
+   * file and survive process death, they are kept until drained and committed.
+   * @param {string[]} records - serialized records
+   */
+  static appendSamples(records) {
+    ForegroundServiceModule.appendSamples(records);
+  }
+
+  /**
+   * Returns a page of sealed segments of the sample sink as [{ segment, records }]
+   * @param {object} options - { maxSegments, maxRecords, includeActive }
+   * @return Promise
+   */
+  static async drainSamples(options) {
+    return await ForegroundServiceModule.drainSamples(options);
+  }
+
+  /**
+   * Deletes drained segments, call it once their records were handled.
+   * @param {string[]} segments - segment names returned by drainSamples
+   * @return Promise
+   */
+  static async commitSamples(segments) {
+    return await ForegroundServiceModule.commitSamples(segments);
+  }
+
+  /**
+   * @return Promise
+   */
+  static async getSampleStats() {
+    return await ForegroundServiceModule.getSampleStats();
+  }
+
   /**
    * Returns an integer indicating if the service is running or not.
    * The integer represents the internal counter of how many startService
@@ -134,49 +196,272 @@ const randHashString = (len) => {
   });
 };
 
+//time source of the task runner. Read through Date.now on every call, so a test can replay
+//long sessions with a virtual clock by replacing Date.now
+const now = () => Date.now();
+
 //initial state
 let tasks = {};
 const samplingInterval = 500; //ms
 let serviceRunning = false;
+//named sessions with a running loop, tasks without a sessionId run on the default loop
+let sessions = {};
+//schedules saved by the native service before the process was killed
+let restoredSchedules = {};
+let syncPending = false;
+//idle policy and execution profiles passed to the native loop
+let loopOptions = {};
+//set by the native loop from the current execution profile
+let loopScale = 1;
+let pauseLowPriority = false;
+
+//persist task schedules natively, batched so several add_task calls sync once
+const syncTasks = () => {
+  if (syncPending) return;
+  syncPending = true;
+  Promise.resolve().then(() => {
+    syncPending = false;
+    //a suspended task does no work until it is resumed, so it doesn't keep the service awake
+    ForegroundServiceModule.syncTasks(
+      Object.values(tasks)
+        .filter((task) => !task.suspended)
+        .map(({ taskId, baseDelay, onLoop, anchor }) => ({
+          taskId,
+          delay: baseDelay,
+          onLoop,
+          anchor,
+        }))
+    );
+  });
+};
+
+//resume a looped task with the cadence it had before the process died
+const applyRestoredSchedule = (task) => {
+  const restored = restoredSchedules[task.taskId];
+  if (!restored || !task.onLoop || restored.delay !== task.baseDelay) return;
+  task.anchor = restored.anchor;
+  task.nextExecutionTime = restored.nextExecutionTime;
+  delete restoredSchedules[task.taskId];
+};
 
 const deleteTask = (taskId) => {
+  purgeQueued((task) => task.taskId === taskId);
   delete tasks[taskId];
+  syncTasks();
 };
 
-const taskRunner = async () => {
+//a budget overrun stretches the interval up to this factor of the task's own delay
+const maxBudgetStretch = 8;
+
+//check a run against the task budget, stretching or suspending the task when it is exceeded
+const applyBudget = (task, syncTime, wallTime) => {
+  const usage = task.usage;
+  usage.runs += 1;
+  usage.syncTime += syncTime;
+  usage.wallTime += wallTime;
+  usage.lastSyncTime = syncTime;
+  usage.lastWallTime = wallTime;
+
+  const { budget } = task;
+  if (!budget) return;
+
+  const overSync = budget.syncMs != null && syncTime > budget.syncMs;
+  const overWall = budget.wallMs != null && wallTime > budget.wallMs;
+
+  if (!overSync && !overWall) {
+    //relax a stretched interval back once the task behaves again
+    if (task.delay > task.baseDelay)
+      task.delay = Math.max(task.baseDelay, task.delay / 2);
+    return;
+  }
+
+  usage.overruns += 1;
+  if (budget.action === "suspend") {
+    task.suspended = true;
+    syncTasks();
+  } else {
+    task.delay = Math.min(task.delay * 2, task.baseDelay * maxBudgetStretch);
+  }
+
+  const event = {
+    taskId: task.taskId,
+    syncTime,
+    wallTime,
+    budget,
+    action: task.suspended ? "suspend" : "stretch",
+    delay: task.delay,
+  };
+  DeviceEventEmitter.emit("foregroundServiceTaskBudget", event);
+  if (task.onBudgetExceeded) task.onBudgetExceeded(event);
+};
+
+//run a task measuring the time it blocks the JS thread synchronously (sync) and the time
+//until its promise settles (wall). JS has no thread CPU clock, so both are wall clock times
+const runTask = (task) => {
+  const started = now();
+  let result;
   try {
-    if (!serviceRunning) return;
+    result = task.task();
+  } catch (error) {
+    result = Promise.reject(error);
+  }
+  const syncTime = now() - started;
+
+  //a throwing callback only fails its own task, the run still settles
+  return Promise.resolve(result)
+    .then(task.onSuccess, task.onError)
+    .catch((error) => console.log(`Error in FgService task ${task.taskId} callback:`, error))
+    .then(() => applyBudget(task, syncTime, now() - started))
+    .catch((error) => console.log(`Error in FgService task ${task.taskId} budget callback:`, error));
+};
+
+//priority lanes, dispatched in this order. Tasks wait in their lane while it runs as many
+//tasks as its concurrency allows. Lanes are shared by all sessions, but a tick only starts
+//the tasks of its own session
+const laneNames = ["critical", "normal", "background"];
+const lanes = Object.fromEntries(
+  laneNames.map((name) => [
+    name,
+    {
+      queue: [],
+      running: 0,
+      concurrency: name === "background" ? 1 : Infinity,
+      dispatched: 0,
+      deferred: 0,
+      deferredTick: null,
+      totalWait: 0,
+      maxWait: 0,
+    },
+  ])
+);
+//background work is deferred to the next tick once this long (ms) passed since the tick started
+let tickBudget = samplingInterval / 2;
+
+const laneOf = (task) => lanes[task.priority] || lanes.normal;
+
+const enqueueTask = (task, time) => {
+  task.queued = true;
+  laneOf(task).queue.push({ task, queuedAt: time });
+};
 
-    const now = Date.now();
-    let promises = [];
+//drop the lane entries of removed tasks, which would otherwise wait for a tick of their
+//session that may never come and count in the lane depth and wait times
+const purgeQueued = (removed) =>
+  laneNames.forEach((name) => {
+    const lane = lanes[name];
+    lane.queue = lane.queue.filter(({ task }) => {
+      if (!removed(task)) return true;
+      task.queued = false;
+      return false;
+    });
+  });
 
-    //iterate over all tasks
-    Object.entries(tasks).forEach(([taskId, task]) => {
-      //check if this task's execution time has arrived
-      if (now >= task.nextExecutionTime) {
-        //push this task's promise for later execution
-        promises.push(
-          Promise.resolve(task.task()).then(task.onSuccess, task.onError)
-        );
-        //if this is a looped task then increment its nextExecutionTime by delay for the next interval
-        if (task.onLoop) task.nextExecutionTime = now + task.delay;
-        //else delete the one-off task
-        else deleteTask(taskId);
+const nextQueued = (lane, sessionId) =>
+  lane.queue.findIndex(({ task }) => task.sessionId === sessionId);
+
+//start the queued tasks of a session lane by lane, returns the promises of the runs started
+const dispatch = (tickStart, sessionId) => {
+  const started = [];
+  for (const name of laneNames) {
+    const lane = lanes[name];
+    let index;
+    while (lane.running < lane.concurrency && (index = nextQueued(lane, sessionId)) !== -1) {
+      const time = now();
+      if (name === "background" && time - tickStart > tickBudget) {
+        //counted once per tick
+        if (lane.deferredTick !== tickStart) lane.deferred += 1;
+        lane.deferredTick = tickStart;
+        break;
       }
+      const { task, queuedAt } = lane.queue.splice(index, 1)[0];
+      task.queued = false;
+      //removed, suspended or paused while it waited
+      if (tasks[task.taskId] !== task || task.suspended) continue;
+      if (task.lowPriority && pauseLowPriority) continue;
+
+      const wait = time - queuedAt;
+      lane.dispatched += 1;
+      lane.totalWait += wait;
+      lane.maxWait = Math.max(lane.maxWait, wait);
+      lane.running += 1;
+
+      //if this is a looped task then increment its nextExecutionTime by delay for the next interval
+      if (task.onLoop) task.nextExecutionTime = time + task.delay * loopScale;
+      //else delete the one-off task
+      else deleteTask(task.taskId);
+
+      started.push(
+        runTask(task)
+          .finally(() => {
+            lane.running -= 1;
+          })
+          //a free slot lets the next queued task in, within the budget of the same tick
+          .then(() => Promise.all(dispatch(tickStart, sessionId)))
+      );
+    }
+  }
+  return started;
+};
+
+const taskRunner = async (data) => {
+  try {
+    const sessionId = data && data.sessionId;
+    //the native service resumed its loop from a snapshot after the process was killed
+    if (data && data.restored) {
+      if (sessionId) sessions[sessionId] = true;
+      else serviceRunning = true;
+    }
+    if (sessionId ? !sessions[sessionId] : !serviceRunning) return;
+    if (data && data.loopScale) {
+      loopScale = data.loopScale;
+      pauseLowPriority = !!data.pauseLowPriority;
+    }
+
+    const tickTime = now();
+
+    //queue the due tasks in their lane
+    Object.values(tasks).forEach((task) => {
+      //only tasks of the session this loop belongs to
+      if (task.sessionId !== sessionId) return;
+      //low priority tasks wait while the execution profile pauses them
+      if (task.lowPriority && pauseLowPriority) return;
+      //check if this task's execution time has arrived
+      if (!task.suspended && !task.queued && tickTime >= task.nextExecutionTime)
+        enqueueTask(task, tickTime);
     });
 
-    //execute all tasks promises in parallel
-    await Promise.all(promises);
+    //keep the headless task alive until everything dispatched from this tick settled
+    await Promise.all(dispatch(tickTime, sessionId));
   } catch (error) {
     console.log("Error in FgService taskRunner:", error);
   }
 };
 
 const register = () => {
-  if (!serviceRunning)
+  if (!serviceRunning) {
+    ForegroundServiceModule.getRestoredTasks().then((schedules) => {
+      schedules.forEach((schedule) => {
+        restoredSchedules[schedule.taskId] = schedule;
+      });
+      Object.values(tasks).forEach(applyRestoredSchedule);
+    }, () => {});
     return ForegroundService.registerForegroundTask("myTaskName", taskRunner);
+  }
 };
 
+//a timer is rendered by SystemUI as a chronometer counting from (or down to) timer.when,
+//so it keeps running without notification updates
+const timerConfig = (timer, showWhen) => ({
+  ...(timer
+    ? {
+        chronometer: true,
+        chronometerCountDown: !!timer.countDown,
+        when: timer.when,
+      }
+    : {}),
+  ...(showWhen != null ? { showWhen } : {}),
+});
+
 const start = async ({
   id,
   title = id,
@@ -195,10 +480,22 @@ const start = async ({
   button2OnPress = "button2OnPress",
   mainOnPress = "mainOnPress",
   progress,
+  timer,
+  showWhen,
   color,
   setOnlyAlertOnce,
+  idleTimeout = 0,
+  stopOnIdle = false,
+  profiles,
+  channelId,
+  channelName,
+  channelDescription,
+  group,
+  groupTitle,
+  groupSummaryId,
 }) => {
   try {
+    loopOptions = { idleTimeout, stopOnIdle, profiles };
     if (!serviceRunning) {
       await ForegroundService.startService({
         id,
@@ -220,8 +517,16 @@ const start = async ({
         progressBar: !!progress,
         progressBarMax: progress?.max,
         progressBarCurr: progress?.curr,
+        progressBarIndeterminate: !!progress?.indeterminate,
+        ...timerConfig(timer, showWhen),
         color,
         setOnlyAlertOnce,
+        channelId,
+        channelName,
+        channelDescription,
+        group,
+        groupTitle,
+        groupSummaryId,
       });
       serviceRunning = true;
       await ForegroundService.runTask({
@@ -229,14 +534,17 @@ const start = async ({
         delay: samplingInterval,
         loopDelay: samplingInterval,
         onLoop: true,
+        ...loopOptions,
       });
+      //let the idle policy know about tasks added before start
+      syncTasks();
     } else console.log("Foreground service is already running.");
   } catch (error) {
     throw error;
   }
 };
 
-const update = async ({
+const toNotificationConfig = ({
   id,
   title = id,
   message = "Foreground Service Running...",
@@ -254,42 +562,79 @@ const update = async ({
   button2OnPress = "button2OnPress",
   mainOnPress = "mainOnPress",
   progress,
+  timer,
+  showWhen,
   color,
   setOnlyAlertOnce,
-}) => {
-  try {
-    await ForegroundService.updateNotification({
-      id,
-      title,
-      message,
-      vibration,
-      visibility,
-      largeIcon,
-      icon,
-      importance,
-      number,
-      button,
-      buttonText,
-      buttonOnPress,
-      button2,
-      button2Text,
-      button2OnPress,
-      mainOnPress,
-      progressBar: !!progress,
-      progressBarMax: progress?.max,
-      progressBarCurr: progress?.curr,
-      setOnlyAlertOnce,
-      color,
+  channelId,
+  channelName,
+  channelDescription,
+  group,
+  groupTitle,
+  groupSummaryId,
+}) => ({
+  id,
+  title,
+  message,
+  vibration,
+  visibility,
+  largeIcon,
+  icon,
+  importance,
+  number,
+  button,
+  buttonText,
+  buttonOnPress,
+  button2,
+  button2Text,
+  button2OnPress,
+  mainOnPress,
+  progressBar: !!progress,
+  progressBarMax: progress?.max,
+  progressBarCurr: progress?.curr,
+  progressBarIndeterminate: !!progress?.indeterminate,
+  ...timerConfig(timer, showWhen),
+  setOnlyAlertOnce,
+  color,
+  channelId,
+  channelName,
+  channelDescription,
+  group,
+  groupTitle,
+  groupSummaryId,
+});
+
+const startLoopIfNeeded = async () => {
+  if (!serviceRunning) {
+    serviceRunning = true;
+    await ForegroundService.runTask({
+      taskName: "myTaskName",
+      delay: samplingInterval,
+      loopDelay: samplingInterval,
+      onLoop: true,
+      ...loopOptions,
     });
-    if (!serviceRunning) {
-      serviceRunning = true;
-      await ForegroundService.runTask({
-        taskName: "myTaskName",
-        delay: samplingInterval,
-        loopDelay: samplingInterval,
-        onLoop: true,
-      });
-    }
+    //let the idle policy know about tasks added before start
+    syncTasks();
+  }
+};
+
+const update = async (options) => {
+  try {
+    await ForegroundService.updateNotification(toNotificationConfig(options));
+    await startLoopIfNeeded();
+  } catch (error) {
+    throw error;
+  }
+};
+
+//updates several notifications (e.g. one per feature in a group) with a single native call
+const update_notifications = async (optionsList) => {
+  try {
+    await ForegroundService.updateNotifications(
+      optionsList.map(toNotificationConfig)
+    );
+    await startLoopIfNeeded();
   } catch (error) {
     throw error;
   }
@@ -301,39 +646,54 @@ const stop = () => {
 };
 const stopAll = () => {
   serviceRunning = false;
+  sessions = {};
   return ForegroundService.stopServiceAll();
 };
 const is_running = () => serviceRunning;
 
-const add_task = (
-  task,
-  {
-    delay = 5000,
-    onLoop = true,
-    taskId = randHashString(12),
-    onSuccess = () => {},
-    onError = () => {},
-  }
+//starts an independent session with its own notification and task loop. The service
+//stays in the foreground until every session (and the default one) is stopped.
+//The idle policy is service wide, a session only changes it when it passes it
+const start_session = async (
+  sessionId,
+  { idleTimeout, stopOnIdle, profiles, ...options }
 ) => {
-  const _type = typeof task;
-  if (_type !== "function")
-    throw `invalid task of type ${_type}, expected a function or a Promise`;
-
-  if (!tasks[taskId])
-    tasks[taskId] = {
-      task,
-      nextExecutionTime: Date.now(),
-      delay: Math.ceil(delay / samplingInterval) * samplingInterval,
-      onLoop: onLoop,
-      taskId,
-      onSuccess,
-      onError,
-    };
+  if (sessions[sessionId]) {
+    console.log(`Foreground service session ${sessionId} is already running.`);
+    return;
+  }
+  await ForegroundService.startService({
+    ...toNotificationConfig(options),
+    sessionId,
+  });
+  sessions[sessionId] = true;
+  await ForegroundService.runTask({
+    taskName: "myTaskName",
+    delay: samplingInterval,
+    loopDelay: samplingInterval,
+    onLoop: true,
+    sessionId,
+    ...(idleTimeout != null ? { idleTimeout } : {}),
+    ...(stopOnIdle != null ? { stopOnIdle } : {}),
+    profiles,
+  });
+  syncTasks();
+};
 
-  return taskId;
+//stops a session together with its tasks
+const stop_session = (sessionId) => {
+  delete sessions[sessionId];
+  purgeQueued((task) => task.sessionId === sessionId);
+  Object.values(tasks).forEach((task) => {
+    if (task.sessionId === sessionId) delete tasks[task.taskId];
+  });
+  syncTasks();
+  return ForegroundService.stopSession(sessionId);
 };
 
-const update_task = (
+const get_sessions = () => ForegroundService.getSessions();
+
+const createTask = (
   task,
   {
     delay = 5000,
@@ -341,43 +701,143 @@ const update_task = (
     taskId = randHashString(12),
     onSuccess = () => {},
     onError = () => {},
+    budget,
+    onBudgetExceeded,
+    sessionId,
+    lowPriority = false,
+    priority = lowPriority ? "background" : "normal",
   }
 ) => {
   const _type = typeof task;
   if (_type !== "function")
     throw `invalid task of type ${_type}, expected a function or a Promise`;
 
-  tasks[taskId] = {
+  const createdAt = now();
+  const roundedDelay = Math.ceil(delay / samplingInterval) * samplingInterval;
+  return {
     task,
-    nextExecutionTime: Date.now(),
-    delay: Math.ceil(delay / samplingInterval) * samplingInterval,
+    nextExecutionTime: createdAt,
+    anchor: createdAt,
+    delay: roundedDelay,
+    baseDelay: roundedDelay,
     onLoop: onLoop,
     taskId,
     onSuccess,
     onError,
+    budget,
+    onBudgetExceeded,
+    sessionId,
+    lowPriority,
+    priority: lanes[priority] ? priority : "normal",
+    queued: false,
+    suspended: false,
+    usage: {
+      runs: 0,
+      syncTime: 0,
+      wallTime: 0,
+      lastSyncTime: 0,
+      lastWallTime: 0,
+      overruns: 0,
+    },
   };
+};
+
+const add_task = (task, options) => {
+  const created = createTask(task, options);
+  const { taskId } = created;
+
+  if (!tasks[taskId]) {
+    tasks[taskId] = created;
+    applyRestoredSchedule(tasks[taskId]);
+    syncTasks();
+  }
 
   return taskId;
 };
 
+const update_task = (task, options) => {
+  const created = createTask(task, options);
+  tasks[created.taskId] = created;
+  syncTasks();
+
+  return created.taskId;
+};
+
 const remove_task = (taskId) => deleteTask(taskId);
 
 const is_task_running = (taskId) => (tasks[taskId] ? true : false);
 
-const remove_all_tasks = () => (tasks = {});
+const remove_all_tasks = () => {
+  purgeQueued(() => true);
+  tasks = {};
+  syncTasks();
+  return tasks;
+};
 
 const get_task = (taskId) => tasks[taskId];
 
 const get_all_tasks = () => tasks;
 
+const usageOf = (task) => ({
+  ...task.usage,
+  delay: task.delay,
+  baseDelay: task.baseDelay,
+  budget: task.budget,
+  suspended: task.suspended,
+});
 
-const cancel_notification = (id) => {
-  return ForegroundService.cancelNotification(id);
+const get_task_usage = (taskId) =>
+  tasks[taskId] ? usageOf(tasks[taskId]) : undefined;
+
+const get_all_task_usage = () =>
+  Object.fromEntries(
+    Object.entries(tasks).map(([taskId, task]) => [taskId, usageOf(task)])
+  );
+
+//resume a task suspended for exceeding its budget
+const resume_task = (taskId) => {
+  const task = tasks[taskId];
+  if (!task) return false;
+  task.suspended = false;
+  task.delay = task.baseDelay;
+  task.nextExecutionTime = now();
+  syncTasks();
+  return true;
+};
+
+//queue depth, running tasks and wait times (ms) of each priority lane
+const get_lane_stats = () =>
+  Object.fromEntries(
+    laneNames.map((name) => {
+      const lane = lanes[name];
+      return [
+        name,
+        {
+          depth: lane.queue.length,
+          running: lane.running,
+          concurrency: lane.concurrency,
+          dispatched: lane.dispatched,
+          deferred: lane.deferred,
+          averageWait: lane.dispatched ? lane.totalWait / lane.dispatched : 0,
+          maxWait: lane.maxWait,
+          oldestWait: lane.queue.length ? now() - lane.queue[0].queuedAt : 0,
+        },
+      ];
+    })
+  );
+
+//max concurrency per lane and the tick budget after which background work waits
+const set_lane_options = ({ tickBudget: budget, ...concurrency }) => {
+  if (budget != null) tickBudget = budget;
+  Object.entries(concurrency).forEach(([name, options]) => {
+    if (lanes[name] && options && options.concurrency > 0)
+      lanes[name].concurrency = options.concurrency;
+  });
 };
 
-const eventListener = (callBack) => {
+const budgetListener = (callBack) => {
   let subscription = DeviceEventEmitter.addListener(
-    "notificationClickHandle",
+    "foregroundServiceTaskBudget",
     callBack
   );
 
@@ -386,13 +846,96 @@ const eventListener = (callBack) => {
   };
 };
 
+
+const get_metrics = () => ForegroundServiceModule.getMetrics();
+
+const cancel_notification = (id) => {
+  return ForegroundService.cancelNotification(id);
+};
+
+const serializeSample = (sample) =>
+  typeof sample === "string" ? sample : JSON.stringify(sample);
+
+const append_sample = (sample) =>
+  ForegroundService.appendSamples([serializeSample(sample)]);
+
+const append_samples = (samples) =>
+  ForegroundService.appendSamples(samples.map(serializeSample));
+
+const drain_samples = (options = {}) => ForegroundService.drainSamples(options);
+
+const commit_samples = (segments) => ForegroundService.commitSamples(segments);
+
+const get_sample_stats = () => ForegroundService.getSampleStats();
+
+//native events arrive batched as [{ type, time, data }] and are dispatched by type
+let eventHandlers = {};
+let eventSubscription = null;
+let eventInterval = 250; //ms
+
+const dispatchEvents = (events) => {
+  events.forEach(({ type, time, data }) => {
+    (eventHandlers[type] || []).forEach((handler) => {
+      try {
+        handler(data, time);
+      } catch (error) {
+        console.log("Error in FgService event listener:", error);
+      }
+    });
+  });
+};
+
+//tell the native side which event types to queue, it starts flushing once called
+const updateEventDelivery = () => {
+  if (!eventSubscription)
+    eventSubscription = DeviceEventEmitter.addListener(
+      "foregroundServiceEvents",
+      dispatchEvents
+    );
+  ForegroundServiceModule.setEventDelivery(
+    Object.keys(eventHandlers).filter((type) => eventHandlers[type].length),
+    eventInterval
+  );
+};
+
+//listens to native events of one type: notificationClick (default), tick, taskFinished,
+//idle or profile
+const eventListener = (callBack, type = "notificationClick") => {
+  const handlers = (eventHandlers[type] = eventHandlers[type] || []);
+  handlers.push(callBack);
+  updateEventDelivery();
+
+  //clicks emitted directly by an app's own MainActivity
+  const direct =
+    type === "notificationClick"
+      ? DeviceEventEmitter.addListener("notificationClickHandle", callBack)
+      : null;
+
+  return function cleanup() {
+    const index = handlers.indexOf(callBack);
+    if (index >= 0) handlers.splice(index, 1);
+    if (direct) direct.remove();
+    updateEventDelivery();
+  };
+};
+
+//how often batched events are flushed to JS
+const set_event_interval = (interval) => {
+  eventInterval = interval;
+  if (eventSubscription) updateEventDelivery();
+};
+
 const ReactNativeForegroundService = {
   register,
   start,
   update,
+  update_notifications,
   stop,
   stopAll,
   is_running,
+  start_session,
+  stop_session,
+  get_sessions,
   add_task,
   update_task,
   remove_task,
@@ -400,8 +943,21 @@ const ReactNativeForegroundService = {
   remove_all_tasks,
   get_task,
   get_all_tasks,
+  get_task_usage,
+  get_all_task_usage,
+  resume_task,
+  get_lane_stats,
+  set_lane_options,
   cancel_notification,
+  get_metrics,
+  append_sample,
+  append_samples,
+  drain_samples,
+  commit_samples,
+  get_sample_stats,
   eventListener,
+  set_event_interval,
+  budgetListener,
 };
 
 export default ReactNativeForegroundService;
@@ -0,0 +1,26 @@
+import { test } from "node:test";
+import assert from "node:assert/strict";
+import { runScenario } from "./support/simulation.mjs";
+
+const check = async (name) => {
+  const { scenario, result } = await runScenario(name);
+  const { expect } = scenario;
+  assert.equal(result.ticks, expect.ticks, "ticks");
+  assert.deepEqual(result.runs, expect.runs, "task runs");
+  assert.deepEqual(result.maxLateness, expect.maxLateness, "max lateness");
+  assert.equal(result.posts, expect.posts, "notification posts");
+  if (expect.laneDepth) assert.deepEqual(result.laneDepth, expect.laneDepth, "lane depth");
+};
+
+test("an hour of steady ticks runs every task on time", () => check("steady_loop"));
+
+test("stalled native ticks make tasks late but don't pile them up", () =>
+  check("stalled_ticks"));
+
+test("power save stretches loops and pauses low priority tasks", () =>
+  check("power_save"));
+
+test("a throwing task callback doesn't hold its lane slot", () =>
+  check("failing_callbacks"));
+
+test("a removed task leaves its lane queue", () => check("removed_queued_task"));
@@ -0,0 +1,14 @@
+//module hooks of the simulation: react-native resolves to the mock, and the library entry
+//point is loaded as an ES module (the package itself is published untranspiled)
+const mock = new URL("./react-native.mjs", import.meta.url).href;
+const entry = new URL("../../index.js", import.meta.url).pathname;
+
+export const resolve = (specifier, context, next) =>
+  specifier === "react-native"
+    ? { url: mock, shortCircuit: true }
+    : next(specifier, context);
+
+export const load = (url, context, next) =>
+  url.startsWith("file:") && new URL(url).pathname === entry
+    ? next(url, { ...context, format: "module" })
+    : next(url, context);
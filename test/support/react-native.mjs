@@ -0,0 +1,40 @@
+//stand-in for react-native in the simulation: records every call to the native module and
+//resolves it right away, as a running service would
+const listeners = {};
+const headlessTasks = {};
+
+export const calls = [];
+
+export const NativeModules = {
+  ForegroundService: new Proxy(
+    {},
+    {
+      get: (_, method) =>
+        (...args) => {
+          calls.push({ method, args });
+          return Promise.resolve(method === "getRestoredTasks" ? [] : null);
+        },
+    }
+  ),
+};
+
+//runs a registered headless task the way the native loop starts it
+export const runHeadlessTask = (name, data) => headlessTasks[name]()(data);
+
+export const AppRegistry = {
+  registerHeadlessTask: (name, provider) => {
+    headlessTasks[name] = provider;
+  },
+};
+
+export const DeviceEventEmitter = {
+  addListener: (name, callback) => {
+    (listeners[name] = listeners[name] || []).push(callback);
+    return {
+      remove: () => {
+        listeners[name] = listeners[name].filter((c) => c !== callback);
+      },
+    };
+  },
+  emit: (name, data) => (listeners[name] || []).forEach((c) => c(data)),
+};
@@ -0,0 +1,106 @@
+import { readFileSync } from "node:fs";
+import { calls, runHeadlessTask } from "react-native";
+
+const scenarioDir = new URL("../scenarios/", import.meta.url);
+
+export const loadScenario = (name) =>
+  JSON.parse(readFileSync(new URL(`${name}.json`, scenarioDir), "utf8"));
+
+//Replays a scenario against a fresh copy of the task runner on a virtual clock. The native
+//loop is played by the simulation: it ticks every interval (scaled by the current profile)
+//except while a stall holds it back, each tick running the headless task the library
+//registered. The clock is virtual by replacing Date.now for the duration of the scenario.
+export const runScenario = async (name) => {
+  const scenario = loadScenario(name);
+  //a query makes a new module instance, so scenarios don't share tasks or lanes
+  const library = await import(`../../index.js?scenario=${name}`);
+  const service = library.default;
+
+  let time = 0;
+  const dateNow = Date.now;
+  Date.now = () => time;
+  calls.length = 0;
+  //the library logs every notification update
+  const log = console.log;
+  console.log = () => {};
+
+  try {
+    //the ticks go through the headless task the runner registers
+    service.register();
+    await service.start({ id: 1, title: scenario.description });
+
+    const result = { ticks: 0, runs: {}, maxLateness: {}, posts: 0 };
+    const due = {};
+    for (const spec of scenario.tasks) {
+      result.runs[spec.taskId] = 0;
+      result.maxLateness[spec.taskId] = 0;
+      service.add_task(
+        () => {
+          result.runs[spec.taskId] += 1;
+          result.maxLateness[spec.taskId] = Math.max(
+            result.maxLateness[spec.taskId],
+            time - due[spec.taskId]
+          );
+          //synchronous work holds the JS thread, and so the clock
+          time += spec.cost || 0;
+          if (spec.update)
+            return service.update({ id: 1, title: scenario.description, message: `${time}` });
+        },
+        {
+          taskId: spec.taskId,
+          delay: spec.delay,
+          priority: spec.priority,
+          lowPriority: spec.lowPriority,
+          //its onSuccess throws, which must not keep its lane slot
+          ...(spec.failingCallback
+            ? {
+                onSuccess: () => {
+                  throw new Error("callback failed");
+                },
+              }
+            : {}),
+        }
+      );
+    }
+    const postsBefore = calls.length;
+
+    const removals = scenario.removals || [];
+    const stalls = scenario.stalls || [];
+    const profiles = scenario.profiles || [];
+    let data = {};
+    let scale = 1;
+    for (let tick = 0; tick < scenario.duration; tick += scenario.interval * scale) {
+      const profile = profiles.find((p) => p.at === tick);
+      if (profile) {
+        data = { loopScale: profile.loopScale, pauseLowPriority: profile.pauseLowPriority };
+        scale = profile.loopScale;
+      }
+      removals.filter((r) => r.at === tick).forEach((r) => service.remove_task(r.taskId));
+      if (stalls.some((s) => tick >= s.at && tick < s.at + s.for)) continue;
+
+      time = Math.max(time, tick);
+      for (const spec of scenario.tasks) {
+        const task = service.get_task(spec.taskId);
+        if (task) due[spec.taskId] = task.nextExecutionTime;
+      }
+      result.ticks += 1;
+      await runHeadlessTask("myTaskName", data);
+    }
+
+    const laneStats = service.get_lane_stats();
+    result.laneDepth = Object.fromEntries(
+      Object.entries(laneStats).map(([name, lane]) => [name, lane.depth])
+    );
+
+    result.posts = calls
+      .slice(postsBefore)
+      .filter((c) => c.method === "updateNotification" || c.method === "updateNotifications")
+      .length;
+
+    await service.stopAll();
+    return { scenario, result };
+  } finally {
+    Date.now = dateNow;
+    console.log = log;
+  }
+};